@@ -0,0 +1,91 @@
+package com.example.testaudiocapturewiththreshold;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Idle cost of the voice detector on a host JVM: thread CPU time per silent frame for the old
+ * whole-buffer scan, the full scan of the samples read, and CascadeDetector. Each variant is
+ * warmed up, then timed in several runs and the median run is reported.
+ *
+ *   make -C app/benchmark detector
+ */
+public class DetectorBenchmark {
+    private static final int FRAME = 1024;
+    private static final int BUFFER = 24 * FRAME;  // the whole AudioRecord buffer, as the old scan read it
+    private static final short THRESHOLD = 500;
+    private static final int FRAMES = 512;
+    private static final int RUNS = 9;
+    private static final int ROUNDS_PER_RUN = 200;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static long sink = 0;
+
+    private interface Variant {
+        void frame(short[] frame);
+    }
+
+    public static void main(String[] args) {
+        Random random = new Random(7);
+        final short[][] silence = new short[FRAMES][];
+        for (int i = 0; i < FRAMES; i++) {
+            silence[i] = new short[BUFFER];
+            int amplitude = 20 + random.nextInt(120);  // room noise well below the threshold
+            for (int n = 0; n < BUFFER; n++) {
+                silence[i][n] = (short) ((random.nextDouble() * 2 - 1) * amplitude);
+            }
+        }
+        final CascadeDetector detector = new CascadeDetector(THRESHOLD);
+        Variant wholeBuffer = new Variant() {
+            public void frame(short[] frame) {
+                sink += CascadeDetector.searchThreshold(frame, frame.length, THRESHOLD);
+            }
+        };
+        Variant fullScan = new Variant() {
+            public void frame(short[] frame) {
+                sink += CascadeDetector.searchThreshold(frame, FRAME, THRESHOLD);
+            }
+        };
+        Variant cascade = new Variant() {
+            public void frame(short[] frame) {
+                sink += detector.search(frame, FRAME);
+            }
+        };
+        long wholeBufferNs = measure(wholeBuffer, silence);
+        long fullScanNs = measure(fullScan, silence);
+        long cascadeNs = measure(cascade, silence);
+        System.out.println(System.getProperty("java.vm.name") + " " + System.getProperty("java.version")
+                + ", " + FRAME + " samples per frame, CPU ns per silent frame (median of " + RUNS + " runs):");
+        System.out.println("  whole-buffer scan " + wholeBufferNs);
+        System.out.println("  full scan         " + fullScanNs);
+        System.out.println("  cascade           " + cascadeNs + " (" + percent(cascadeNs, fullScanNs)
+                + " of the full scan, " + percent(cascadeNs, wholeBufferNs) + " of the whole-buffer scan)");
+        System.out.println("  " + detector.statistics() + ", sink " + sink);
+    }
+
+    private static long measure(Variant variant, short[][] frames) {
+        for (int round = 0; round < ROUNDS_PER_RUN * 2; round++) {  // warm up the JIT
+            for (short[] frame : frames) {
+                variant.frame(frame);
+            }
+        }
+        long[] runs = new long[RUNS];
+        for (int run = 0; run < RUNS; run++) {
+            long start = THREADS.getCurrentThreadCpuTime();
+            for (int round = 0; round < ROUNDS_PER_RUN; round++) {
+                for (short[] frame : frames) {
+                    variant.frame(frame);
+                }
+            }
+            runs[run] = (THREADS.getCurrentThreadCpuTime() - start) / ((long) ROUNDS_PER_RUN * frames.length);
+        }
+        Arrays.sort(runs);
+        return runs[RUNS / 2];
+    }
+
+    private static String percent(long part, long whole) {
+        return whole > 0 ? Math.round(100.0 * part / whole) + "%" : "n/a";
+    }
+}
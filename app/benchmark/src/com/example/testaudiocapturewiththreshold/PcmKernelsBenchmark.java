@@ -0,0 +1,128 @@
+package com.example.testaudiocapturewiththreshold;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Per-frame cost of the PCM kernels on a host JVM, the Java fallback against libndk1 built by
+ * jni/Makefile.host: thread CPU time per 1024 sample frame for each kernel, and for the detector
+ * on a silent frame as an array scan and on the direct buffer. Each variant is warmed up, then
+ * timed in several runs and the median run is reported.
+ *
+ *   make -C app/benchmark kernels
+ */
+public class PcmKernelsBenchmark {
+    private static final int FRAME = 1024;
+    private static final short THRESHOLD = 500;
+    private static final int RUNS = 9;
+    private static final int ROUNDS_PER_RUN = 100000;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static long sink = 0;
+
+    private interface Variant {
+        void frame();
+    }
+
+    public static void main(String[] args) {
+        Random random = new Random(7);
+        final short[] samples = new short[FRAME];
+        for (int i = 0; i < FRAME; i++) {
+            samples[i] = (short) (random.nextInt(240) - 120);  // room noise well below the threshold
+        }
+        final ByteBuffer pcm = ByteBuffer.allocateDirect(FRAME * 2).order(ByteOrder.nativeOrder());
+        pcm.asShortBuffer().put(samples);
+        final ByteBuffer out = ByteBuffer.allocateDirect(FRAME * 2).order(ByteOrder.nativeOrder());
+        final byte[] bytes = new byte[FRAME * 2];
+        final CascadeDetector onArray = new CascadeDetector(THRESHOLD);
+        final CascadeDetector onBuffer = new CascadeDetector(THRESHOLD);
+
+        System.out.println(System.getProperty("java.vm.name") + " " + System.getProperty("java.version")
+                + ", " + FRAME + " samples per frame, CPU ns per frame (median of " + RUNS + " runs)");
+        System.out.println("  libndk1 " + (PcmKernels.isNativeAvailable() ? "loaded"
+                : "not loaded: " + PcmKernels.getNativeLoadError()));
+        report("pack to direct buffer", new Variant() {
+            public void frame() {
+                PcmKernels.javaPackLittleEndian(pcm, FRAME, out);
+            }
+        }, new Variant() {
+            public void frame() {
+                PcmKernels.nativePackLittleEndian(pcm, FRAME, out);
+            }
+        });
+        report("peak", new Variant() {
+            public void frame() {
+                sink += PcmKernels.javaPeak(pcm, FRAME);
+            }
+        }, new Variant() {
+            public void frame() {
+                sink += PcmKernels.nativePeak(pcm, FRAME);
+            }
+        });
+        report("sum of squares", new Variant() {
+            public void frame() {
+                sink += PcmKernels.javaSumOfSquares(pcm, FRAME);
+            }
+        }, new Variant() {
+            public void frame() {
+                sink += PcmKernels.nativeSumOfSquares(pcm, FRAME);
+            }
+        });
+        report("block max", new Variant() {
+            public void frame() {
+                sink += PcmKernels.javaBlockMax(pcm, FRAME, CascadeDetector.BLOCK, out);
+            }
+        }, new Variant() {
+            public void frame() {
+                sink += PcmKernels.nativeBlockMax(pcm, FRAME, CascadeDetector.BLOCK, out);
+            }
+        });
+        System.out.println("  ShortToByte, short[] loop " + measure(new Variant() {
+            public void frame() {
+                PcmKernels.packLittleEndian(samples, FRAME, bytes);
+                sink += bytes[0];
+            }
+        }) + ", direct buffer bulk copy " + measure(new Variant() {
+            public void frame() {
+                PcmKernels.packLittleEndian(pcm, FRAME, bytes);
+                sink += bytes[0];
+            }
+        }));
+        System.out.println("  silent frame detector, short[] " + measure(new Variant() {
+            public void frame() {
+                sink += onArray.search(samples, FRAME);
+            }
+        }) + ", direct buffer " + measure(new Variant() {
+            public void frame() {
+                sink += onBuffer.search(pcm, FRAME);
+            }
+        }));
+        System.out.println("  sink " + sink);
+    }
+
+    private static void report(String kernel, Variant java, Variant nativeKernel) {
+        long javaNs = measure(java);
+        String nativeNs = PcmKernels.isNativeAvailable() ? Long.toString(measure(nativeKernel)) : "n/a";
+        System.out.println("  " + kernel + ": java " + javaNs + ", native " + nativeNs);
+    }
+
+    private static long measure(Variant variant) {
+        for (int round = 0; round < ROUNDS_PER_RUN; round++) {  // warm up the JIT
+            variant.frame();
+        }
+        long[] runs = new long[RUNS];
+        for (int run = 0; run < RUNS; run++) {
+            long start = THREADS.getCurrentThreadCpuTime();
+            for (int round = 0; round < ROUNDS_PER_RUN; round++) {
+                variant.frame();
+            }
+            runs[run] = (THREADS.getCurrentThreadCpuTime() - start) / ROUNDS_PER_RUN;
+        }
+        Arrays.sort(runs);
+        return runs[RUNS / 2];
+    }
+}
@@ -2,9 +2,8 @@ LOCAL_PATH := $(call my-dir)
 
 include $(CLEAR_VARS)
 
-LOCAL_LDLIBS := -llog
-
 LOCAL_MODULE    := ndk1
 LOCAL_SRC_FILES := native.c
+LOCAL_CFLAGS    := -O3 -Wall
 
-include $(BUILD_SHARED_LIBRARY)
\ No newline at end of file
+include $(BUILD_SHARED_LIBRARY)
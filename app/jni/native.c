@@ -1,15 +1,96 @@
+//////////////////////////////////////////////////////////////////////////////////////////////////////
+// native.c - Native PCM kernels for the capture hot path (libndk1)                                 //
+// Ver 1.0                                                                                          //
+// Language:    C                                                                                   //
+// platform:    Android NDK, or host gcc on Linux (see Makefile.host)                               //
+// Application: Audio Capture Application                                                           //
+//////////////////////////////////////////////////////////////////////////////////////////////////////
+/*
+* Module Operations:
+* -------------------
+* JNI bodies of the native methods declared in PcmKernels.java. Every kernel works on direct
+* ByteBuffers holding 16 bit samples in native byte order, as AudioRecord.read(ByteBuffer, int)
+* delivers them, so no Java array is pinned or copied. Indices are absolute from the start of the
+* buffer; PcmKernels validates capacities before calling in.
+*/
+
 #include <jni.h>
-#include <string.h>
-#include <android/log.h>
+#include <stdint.h>
+
+static const int16_t *samples_of(JNIEnv *env, jobject buffer)
+{
+    return (const int16_t *) (*env)->GetDirectBufferAddress(env, buffer);
+}
+
+static inline int32_t abs16(int16_t v)
+{
+    int32_t x = v;
+    return x < 0 ? -x : x;
+}
 
-#define DEBUG_TAG "NDK_TestAudioCaptureWithThreshold"
+// 16 bit native order -> 16 bit little-endian bytes, what ShortToByte does for short[]
+JNIEXPORT void JNICALL
+Java_com_example_testaudiocapturewiththreshold_PcmKernels_nativePackLittleEndian(JNIEnv *env, jclass clazz,
+        jobject src, jint samples, jobject dst)
+{
+    const int16_t *in = samples_of(env, src);
+    uint8_t *out = (uint8_t *) (*env)->GetDirectBufferAddress(env, dst);
+    jint i;
+    for (i = 0; i < samples; i++) {
+        uint16_t v = (uint16_t) in[i];
+        out[2 * i] = (uint8_t) (v & 0xFF);
+        out[2 * i + 1] = (uint8_t) (v >> 8);
+    }
+}
 
-void Java_com_example_testaudiocapturewiththreshold_ndk1_testaudiocapturewiththreshold_helloLog(JNIEnv * env, jobject this, jstring logThis)
+// Largest magnitude in the frame
+JNIEXPORT jint JNICALL
+Java_com_example_testaudiocapturewiththreshold_PcmKernels_nativePeak(JNIEnv *env, jclass clazz,
+        jobject src, jint samples)
 {
-    jboolean isCopy;
-    const char * szLogThis = (*env)->GetStringUTFChars(env, logThis, &isCopy);
+    const int16_t *in = samples_of(env, src);
+    int32_t peak = 0;
+    jint i;
+    for (i = 0; i < samples; i++) {
+        int32_t v = abs16(in[i]);
+        peak = v > peak ? v : peak;
+    }
+    return peak;
+}
 
-    __android_log_print(ANDROID_LOG_DEBUG, DEBUG_TAG, "NDK:LC: [%s]", szLogThis);
+// Sum of squares, PcmKernels turns it into the RMS
+JNIEXPORT jlong JNICALL
+Java_com_example_testaudiocapturewiththreshold_PcmKernels_nativeSumOfSquares(JNIEnv *env, jclass clazz,
+        jobject src, jint samples)
+{
+    const int16_t *in = samples_of(env, src);
+    int64_t sum = 0;
+    jint i;
+    for (i = 0; i < samples; i++) {
+        int32_t v = in[i];
+        sum += v * v;
+    }
+    return sum;
+}
 
-    (*env)->ReleaseStringUTFChars(env, logThis, szLogThis);
-}
\ No newline at end of file
+// Largest magnitude of every block of samples, written as 16 bit values (clamped to 32767)
+JNIEXPORT jint JNICALL
+Java_com_example_testaudiocapturewiththreshold_PcmKernels_nativeBlockMax(JNIEnv *env, jclass clazz,
+        jobject src, jint samples, jint block, jobject dst)
+{
+    const int16_t *in = samples_of(env, src);
+    int16_t *out = (int16_t *) (*env)->GetDirectBufferAddress(env, dst);
+    jint blocks = 0;
+    jint start;
+    for (start = 0; start < samples; start += block) {
+        jint end = start + block < samples ? start + block : samples;
+        int32_t peak = 0;
+        jint i;
+        for (i = start; i < end; i++) {
+            int32_t v = abs16(in[i]);
+            peak = v > peak ? v : peak;
+        }
+        out[blocks++] = (int16_t) (peak > 32767 ? 32767 : peak);
+    }
+    return blocks;
+}
@@ -0,0 +1,128 @@
+package com.example.testaudiocapturewiththreshold;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Writes synthetic AAC access units through AdtsAudioSink and checks the periodic durable
+ * flushes, that a preallocated file is cut back to the written bytes, and that recoverLength
+ * trims what a crash can leave behind: a torn last frame, preallocated zeros or garbage.
+ */
+public class AdtsAudioSinkTest extends TestCase {
+    private static final int SAMPLE_RATE = 44100;
+    private static final long FRAME_US = 1024 * 1000000L / SAMPLE_RATE;
+    private static final int FRAMES = 500;  // about 11.6 s of audio
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("sink", ".aac");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+        super.tearDown();
+    }
+
+    public void testSyncsOncePerInterval() throws Exception {
+        AdtsAudioSink sink = new AdtsAudioSink(file);
+        write(sink, FRAMES);
+        // the first frame, then every DEFAULT_SYNC_INTERVAL_US of audio
+        long expected = 1 + (FRAMES - 1) * FRAME_US / AdtsAudioSink.DEFAULT_SYNC_INTERVAL_US;
+        assertEquals(expected, sink.getSyncCount());
+        close(sink);
+    }
+
+    public void testPreallocatedFileIsTruncatedOnStop() throws Exception {
+        AdtsAudioSink sink = new AdtsAudioSink(file, AdtsAudioSink.DEFAULT_SYNC_INTERVAL_US, 1024 * 1024);
+        write(sink, 50);
+        close(sink);
+        assertEquals(sink.getBytesWritten(), file.length());
+    }
+
+    public void testRecoverKeepsCompleteFile() throws Exception {
+        long length = writeFile();
+        assertEquals(length, AdtsAudioSink.recoverLength(file));
+        assertEquals(length, file.length());
+    }
+
+    public void testRecoverTrimsTornFrame() throws Exception {
+        long length = writeFile();
+        // header of a 400 byte frame followed by only part of its payload
+        append(new byte[]{(byte) 0xFF, (byte) 0xF1, 0x50, (byte) 0x80, 0x32, 0x1F, (byte) 0xFC}, new byte[150]);
+        assertEquals(length, AdtsAudioSink.recoverLength(file));
+        assertEquals(length, file.length());
+    }
+
+    public void testRecoverTrimsPreallocatedZeros() throws Exception {
+        long length = writeFile();
+        append(new byte[64 * 1024]);
+        assertEquals(length, AdtsAudioSink.recoverLength(file));
+        assertEquals(length, file.length());
+    }
+
+    public void testRecoverTrimsGarbageTail() throws Exception {
+        long length = writeFile();
+        byte[] garbage = new byte[5000];
+        new Random(11).nextBytes(garbage);
+        garbage[0] = 0x12;  // not a sync word
+        append(garbage);
+        assertEquals(length, AdtsAudioSink.recoverLength(file));
+        assertEquals(length, file.length());
+    }
+
+    public void testRecoverEmptyAndMissingFile() throws Exception {
+        assertEquals(0, AdtsAudioSink.recoverLength(file));
+        file.delete();
+        assertEquals(0, AdtsAudioSink.recoverLength(file));
+    }
+
+    // A complete recording, returns its length
+    private long writeFile() throws IOException {
+        AdtsAudioSink sink = new AdtsAudioSink(file);
+        write(sink, FRAMES);
+        close(sink);
+        assertEquals(sink.getBytesWritten(), file.length());
+        return file.length();
+    }
+
+    private static void write(AdtsAudioSink sink, int frames) throws IOException {
+        sink.addTrack(MediaFormat.createAudioFormat("audio/mp4a-latm", SAMPLE_RATE, 1));
+        sink.start();
+        Random random = new Random(frames);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        for (int i = 0; i < frames; i++) {
+            byte[] frame = new byte[100 + random.nextInt(400)];
+            random.nextBytes(frame);
+            info.set(0, frame.length, i * FRAME_US, 0);
+            sink.writeSampleData(0, ByteBuffer.wrap(frame), info);
+        }
+    }
+
+    private static void close(AdtsAudioSink sink) throws IOException {
+        sink.stop();
+        sink.release();
+    }
+
+    private void append(byte[]... parts) throws IOException {
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            for (byte[] part : parts) {
+                out.write(part);
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
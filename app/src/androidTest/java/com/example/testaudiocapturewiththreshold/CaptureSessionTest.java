@@ -0,0 +1,161 @@
+package com.example.testaudiocapturewiththreshold;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Replays recorded frames through CaptureSession with sample clocks and checks that the output
+ * does not depend on replay speed and that the timeline has no gaps.
+ */
+public class CaptureSessionTest extends TestCase {
+    private static final int SAMPLE_RATE = 44100;
+    private static final int FRAME = 1024;
+    private static final short THRESHOLD = 500;
+    private static final long SECOND = 1000000000L;
+
+    public void testReplayIsIdenticalAtAnySpeed() throws Exception {
+        short[][] corpus = CascadeDetectorTest.buildCorpus(new Random(3), 3000);
+        RecordingConsumer fast = replay(corpus, 0);
+        RecordingConsumer jittered = replay(corpus, 1);
+        assertTrue(fast.frames.size() > 0);
+        assertEquals(fast.frames.size(), jittered.frames.size());
+        for (int i = 0; i < fast.frames.size(); i++) {
+            assertEquals(fast.timestamps.get(i), jittered.timestamps.get(i));
+            assertTrue(Arrays.equals(fast.frames.get(i), jittered.frames.get(i)));
+        }
+    }
+
+    public void testTimelineIsGapless() throws Exception {
+        short[][] corpus = CascadeDetectorTest.buildCorpus(new Random(5), 3000);
+        RecordingConsumer consumer = replay(corpus, 0);
+        SampleClock expected = new SampleClock(SAMPLE_RATE);
+        for (int i = 0; i < consumer.frames.size(); i++) {
+            assertEquals(expected.nowNs(), (long) consumer.timestamps.get(i));
+            expected.advance(consumer.frames.get(i).length / 2);
+        }
+    }
+
+    public void testDirectBufferMatchesArrayReplay() throws Exception {
+        short[][] corpus = CascadeDetectorTest.buildCorpus(new Random(9), 2000);
+        RecordingConsumer fromArrays = replay(corpus, 0);
+        RecordingConsumer fromBuffer = new RecordingConsumer();
+        CaptureSession session = newSession(fromBuffer, 60 * SECOND);
+        ByteBuffer pcm = ByteBuffer.allocateDirect(FRAME * 2).order(ByteOrder.nativeOrder());
+        for (short[] frame : corpus) {
+            pcm.clear();
+            pcm.asShortBuffer().put(frame, 0, FRAME);
+            if (!session.processFrame(pcm, FRAME)) {
+                break;
+            }
+        }
+        session.finish(1000);
+        assertTrue(fromArrays.frames.size() > 0);
+        assertEquals(fromArrays.frames.size(), fromBuffer.frames.size());
+        for (int i = 0; i < fromArrays.frames.size(); i++) {
+            assertEquals(fromArrays.timestamps.get(i), fromBuffer.timestamps.get(i));
+            assertTrue(Arrays.equals(fromArrays.frames.get(i), fromBuffer.frames.get(i)));
+        }
+    }
+
+    public void testSessionEndsAfterAllowablePause() throws Exception {
+        RecordingConsumer consumer = new RecordingConsumer();
+        CaptureSession session = newSession(consumer, 3 * SECOND);
+        short[] voice = new short[FRAME];
+        Arrays.fill(voice, (short) 1000);
+        short[] silence = new short[FRAME];
+        assertTrue(session.processFrame(voice, FRAME));
+
+        // natural pause 1 s is still recorded, allowable pause 3 s ends the session
+        int frames = 0;
+        while (session.processFrame(silence, FRAME)) {
+            frames++;
+        }
+        // the first silent frame starts the pause at 0 s, so frame k is k * FRAME samples into it
+        assertEquals(3 * SAMPLE_RATE / FRAME + 1, frames);
+        assertEquals(1 + SAMPLE_RATE / FRAME + 1, consumer.frames.size());
+        assertTrue(session.finish(1000));
+        assertTrue(consumer.stopped);
+    }
+
+    public void testFinishReportsEncoderStillDraining() throws Exception {
+        RecordingConsumer consumer = new RecordingConsumer();
+        consumer.draining = true;
+        CaptureSession session = newSession(consumer, 3 * SECOND);
+        short[] voice = new short[FRAME];
+        Arrays.fill(voice, (short) 1000);
+        session.processFrame(voice, FRAME);
+        assertFalse(session.finish(10));
+        assertTrue(consumer.stopped);
+    }
+
+    public void testSampleClockDoesNotOverflow() {
+        SampleClock clock = new SampleClock(SAMPLE_RATE);
+        for (int hour = 0; hour < 100; hour++) {
+            clock.advance(SAMPLE_RATE * 3600);
+        }
+        assertEquals(100L * 3600 * SECOND, clock.nowNs());
+    }
+
+    private RecordingConsumer replay(short[][] corpus, int maxSleepMs) throws Exception {
+        RecordingConsumer consumer = new RecordingConsumer();
+        // corpus silences are under 10 s, so the session runs through the whole corpus
+        CaptureSession session = newSession(consumer, 60 * SECOND);
+        Random jitter = new Random();
+        for (short[] frame : corpus) {
+            if (maxSleepMs > 0 && jitter.nextInt(50) == 0) {
+                Thread.sleep(jitter.nextInt(maxSleepMs + 1));
+            }
+            if (!session.processFrame(frame, FRAME)) {
+                break;
+            }
+        }
+        session.finish(1000);
+        return consumer;
+    }
+
+    private static CaptureSession newSession(final RecordingConsumer consumer, long allowablePauseNs) {
+        return new CaptureSession(new CascadeDetector(THRESHOLD), new SampleClock(SAMPLE_RATE),
+                new SampleClock(SAMPLE_RATE), SECOND, allowablePauseNs, new CaptureSession.EncoderFactory() {
+            public AudioFrameConsumer createEncoder(CaptureSession session) throws IOException {
+                return consumer;
+            }
+        });
+    }
+
+    static class RecordingConsumer implements AudioFrameConsumer {
+        final List<byte[]> frames = new ArrayList<byte[]>();
+        final List<Long> timestamps = new ArrayList<Long>();
+        boolean stopped = false;
+        boolean draining = false;  // waitForStop times out even after stop()
+        int queuedFrames = 0;  // backlog and CPU time the test wants the session to see
+        long cpuTimeNs = 0;
+
+        public void offerAudioEncoder(byte[] input, long presentationTimeStampNs) {
+            frames.add(input);
+            timestamps.add(presentationTimeStampNs);
+        }
+
+        public void stop() {
+            stopped = true;
+        }
+
+        public boolean waitForStop(long timeoutMs) {
+            return stopped && !draining;
+        }
+
+        public int getQueuedFrames() {
+            return queuedFrames;
+        }
+
+        public long getCpuTimeNs() {
+            return cpuTimeNs;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.example.testaudiocapturewiththreshold;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Replays a synthetic voiced speech/silence corpus, random frames with samples right at the
+ * threshold, and broadband bursts and clicks through CascadeDetector and the plain full scan,
+ * where every frame must get the same index. Checks that stage two never runs in silence. The
+ * idle cost itself is measured by app/benchmark, not here.
+ */
+public class CascadeDetectorTest extends TestCase {
+    private static final String TAG = CascadeDetectorTest.class.getSimpleName();
+    private static final int SAMPLE_RATE = 44100;
+    private static final int FRAME = 1024;
+    private static final short THRESHOLD = 500;
+
+    public void testVoicedCorpusMatchesFullScan() {
+        short[][] corpus = buildCorpus(new Random(42), 20000);
+        CascadeDetector detector = new CascadeDetector(THRESHOLD);
+        int onsets = 0;
+        boolean previous = false;
+        for (int i = 0; i < corpus.length; i++) {
+            int fullIndex = CascadeDetector.searchThreshold(corpus[i], FRAME, THRESHOLD);
+            assertEquals("frame " + i, fullIndex, detector.search(corpus[i], FRAME));
+            boolean full = fullIndex > -1;
+            if (full && !previous) {
+                onsets++;
+            }
+            previous = full;
+        }
+        assertTrue("corpus has no onsets", onsets > 50);
+        assertTrue("corpus has no silence", detector.getFramesGated() > corpus.length / 2);
+        Log.i(TAG, onsets + " onsets, " + detector.statistics());
+    }
+
+    // Samples at, just below and just past the threshold on both sides, anywhere in the frame
+    public void testFramesAtTheThresholdMatchFullScan() {
+        short[] edges = {THRESHOLD, (short) (THRESHOLD - 1), (short) -THRESHOLD, (short) (1 - THRESHOLD),
+                (short) (-THRESHOLD - 1), (short) (THRESHOLD + 1), 256, 128, -256, -129, Short.MIN_VALUE, Short.MAX_VALUE};
+        Random random = new Random(13);
+        CascadeDetector detector = new CascadeDetector(THRESHOLD);
+        for (int trial = 0; trial < 5000; trial++) {
+            short[] frame = new short[FRAME];
+            addNoise(frame, random, random.nextInt(THRESHOLD));
+            for (int k = random.nextInt(4); k > 0; k--) {
+                frame[random.nextInt(FRAME)] = edges[random.nextInt(edges.length)];
+            }
+            int count = 1 + random.nextInt(FRAME);
+            assertEquals("trial " + trial, CascadeDetector.searchThreshold(frame, count, THRESHOLD),
+                    detector.search(frame, count));
+        }
+    }
+
+    // Plosive/fricative-like white noise bursts and clicks over a quiet background
+    public void testBroadbandOnsets() {
+        Random random = new Random(17);
+        CascadeDetector detector = new CascadeDetector(THRESHOLD);
+        for (int trial = 0; trial < 2000; trial++) {
+            short[] burst = burst(random, 88 + random.nextInt(FRAME - 88), 1.0);
+            assertEquals("burst " + trial, CascadeDetector.searchThreshold(burst, FRAME, THRESHOLD),
+                    detector.search(burst, FRAME));
+            short[] click = burst(random, 1, 1.0 + random.nextDouble() * 10);
+            assertEquals("click " + trial, CascadeDetector.searchThreshold(click, FRAME, THRESHOLD),
+                    detector.search(click, FRAME));
+        }
+        assertEquals(4000, detector.getFramesDetected());
+    }
+
+    public void testShortReadOnlyScansReadSamples() {
+        short[] buffer = new short[4 * FRAME];
+        buffer[2 * FRAME] = 30000; // stale data beyond the samples that were read
+        CascadeDetector detector = new CascadeDetector(THRESHOLD);
+        assertEquals(-1, detector.search(buffer, FRAME));
+        assertEquals(-1, detector.search(buffer, 0));
+    }
+
+    public void testSilenceNeverReachesStageTwo() {
+        Random random = new Random(7);
+        CascadeDetector detector = new CascadeDetector(THRESHOLD);
+        for (int i = 0; i < 1000; i++) {
+            short[] silence = new short[FRAME];
+            addNoise(silence, random, 20 + random.nextInt(120));
+            assertEquals(-1, detector.search(silence, FRAME));
+        }
+        assertEquals(1000, detector.getFramesGated());
+        assertEquals(0, detector.getSamplesScanned());
+
+        // an onset in the third block: stage two looks at that block only, up to the onset
+        short[] onset = new short[FRAME];
+        onset[2 * CascadeDetector.BLOCK + 10] = THRESHOLD;
+        assertEquals(2 * CascadeDetector.BLOCK + 10, detector.search(onset, FRAME));
+        assertEquals(11, detector.getSamplesScanned());
+    }
+
+    // Speech-like bursts (harmonics below 2.8 kHz with a syllable envelope) between silences
+    static short[][] buildCorpus(Random random, int frames) {
+        short[][] corpus = new short[frames][];
+        int i = 0;
+        while (i < frames) {
+            int silent = 20 + random.nextInt(400);
+            for (int s = 0; s < silent && i < frames; s++, i++) {
+                corpus[i] = new short[FRAME];
+                addNoise(corpus[i], random, 20 + random.nextInt(120));
+            }
+            int voiced = 5 + random.nextInt(120);
+            double f0 = 90 + random.nextDouble() * 160;
+            double peak = THRESHOLD * (0.6 + random.nextDouble() * 6);
+            for (int v = 0; v < voiced && i < frames; v++, i++) {
+                corpus[i] = new short[FRAME];
+                double envelope = peak * Math.sin(Math.PI * (v + 0.5) / voiced);
+                for (int n = 0; n < FRAME; n++) {
+                    double t = (double) (v * FRAME + n) / SAMPLE_RATE;
+                    double x = 0;
+                    for (int h = 1; h * f0 < 2800; h++) {
+                        x += Math.sin(2 * Math.PI * h * f0 * t + h) / h;
+                    }
+                    corpus[i][n] = clip(envelope * x / 2);
+                }
+                addNoise(corpus[i], random, 40);
+            }
+        }
+        return corpus;
+    }
+
+    // A frame of quiet noise with a white noise burst of length samples whose peak is peakRatio * THRESHOLD
+    private static short[] burst(Random random, int length, double peakRatio) {
+        short[] frame = new short[FRAME];
+        addNoise(frame, random, 60);
+        double[] x = new double[length];
+        for (int n = 0; n < length; n++) {
+            x[n] = random.nextGaussian();
+        }
+        short[] noise = scaleToPeak(x, (int) Math.ceil(peakRatio * THRESHOLD));
+        System.arraycopy(noise, 0, frame, random.nextInt(FRAME - length + 1), length);
+        return frame;
+    }
+
+    private static short[] scaleToPeak(double[] x, int peak) {
+        double max = 0;
+        for (double v : x) {
+            max = Math.max(max, Math.abs(v));
+        }
+        short[] scaled = new short[x.length];
+        for (int n = 0; n < x.length; n++) {
+            scaled[n] = clip(Math.rint(x[n] / max * peak));
+        }
+        return scaled;
+    }
+
+    private static void addNoise(short[] frame, Random random, int amplitude) {
+        for (int n = 0; n < frame.length; n++) {
+            frame[n] = clip(frame[n] + (random.nextDouble() * 2 - 1) * amplitude);
+        }
+    }
+
+    private static short clip(double v) {
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, v));
+    }
+}
@@ -0,0 +1,90 @@
+package com.example.testaudiocapturewiththreshold;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Checks the CRC-32C against the published check value, that feeding it in pieces or from
+ * direct buffers gives the same result, and that the checksum AdtsAudioSink computes while
+ * writing matches the file it leaves on disk.
+ */
+public class Crc32cTest extends TestCase {
+    private static final long CHECK_VALUE = 0xE3069283L;  // CRC-32C of "123456789"
+
+    public void testCheckValue() throws Exception {
+        byte[] data = "123456789".getBytes("US-ASCII");
+        Crc32c crc = new Crc32c();
+        crc.update(data, 0, data.length);
+        assertEquals(CHECK_VALUE, crc.getValue());
+        assertEquals("e3069283", Crc32c.toHex(crc.getValue()));
+        assertEquals(CHECK_VALUE, Crc32c.parseHex("E3069283"));
+        assertEquals(Crc32c.UNKNOWN, Crc32c.parseHex("not hex"));
+        crc.reset();
+        assertEquals(0, crc.getValue());
+    }
+
+    public void testIncrementalMatchesWhole() {
+        byte[] data = new byte[10000];
+        new Random(7).nextBytes(data);
+        Crc32c whole = new Crc32c();
+        whole.update(data, 0, data.length);
+
+        Crc32c pieces = new Crc32c();
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).flip();
+        direct.limit(3000);
+        pieces.update(direct);
+        assertEquals(0, direct.position());  // the buffer is left for the writer
+        direct.position(3000).limit(data.length);
+        pieces.update(direct);
+        assertEquals(whole.getValue(), pieces.getValue());
+    }
+
+    public void testAdtsSinkChecksumMatchesFile() throws Exception {
+        File file = File.createTempFile("crc", ".aac");
+        try {
+            AdtsAudioSink sink = new AdtsAudioSink(file);
+            sink.addTrack(MediaFormat.createAudioFormat("audio/mp4a-latm", 44100, 1));
+            sink.start();
+            Random random = new Random(3);
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            for (int i = 0; i < 200; i++) {
+                byte[] frame = new byte[100 + random.nextInt(300)];
+                random.nextBytes(frame);
+                ByteBuffer encoded = ByteBuffer.allocateDirect(frame.length);
+                encoded.put(frame).flip();
+                info.set(0, frame.length, i * 23220L, 0);
+                sink.writeSampleData(0, encoded, info);
+            }
+            assertEquals(Crc32c.UNKNOWN, sink.getChecksum());  // not final before stop
+            sink.stop();
+            sink.release();
+            assertEquals(checksumOf(file), sink.getChecksum());
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static long checksumOf(File file) throws IOException {
+        Crc32c crc = new Crc32c();
+        byte[] buffer = new byte[4096];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return crc.getValue();
+    }
+}
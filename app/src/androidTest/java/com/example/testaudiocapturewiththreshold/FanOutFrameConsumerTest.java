@@ -0,0 +1,94 @@
+package com.example.testaudiocapturewiththreshold;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that every output receives the very same frame array and that a slow output, queueing
+ * on its own executor like AudioEncoder, neither blocks the capture thread nor a fast output.
+ */
+public class FanOutFrameConsumerTest extends TestCase {
+    private static final int FRAMES = 50;
+
+    public void testOutputsShareTheFrame() throws Exception {
+        CaptureSessionTest.RecordingConsumer first = new CaptureSessionTest.RecordingConsumer();
+        CaptureSessionTest.RecordingConsumer second = new CaptureSessionTest.RecordingConsumer();
+        FanOutFrameConsumer fanOut = new FanOutFrameConsumer(first, second);
+        byte[] frame = new byte[2048];
+        fanOut.offerAudioEncoder(frame, 1234);
+        assertSame(frame, first.frames.get(0));
+        assertSame(frame, second.frames.get(0));
+        assertEquals(1234L, (long) second.timestamps.get(0));
+        fanOut.stop();
+        assertTrue(fanOut.waitForStop(100));
+        assertTrue(first.stopped && second.stopped);
+    }
+
+    public void testSlowOutputDoesNotDelayFastOutput() throws Exception {
+        QueuedConsumer fast = new QueuedConsumer(0);
+        QueuedConsumer slow = new QueuedConsumer(20);
+        FanOutFrameConsumer fanOut = new FanOutFrameConsumer(slow, fast);
+        long start = System.nanoTime();
+        for (int i = 0; i < FRAMES; i++) {
+            fanOut.offerAudioEncoder(new byte[2048], i);
+        }
+        long offerMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("offering blocked for " + offerMs + " ms", offerMs < 100);
+        assertTrue(fast.allHandled.await(1, TimeUnit.SECONDS));
+        assertTrue("slow output finished first", slow.handled.get() < FRAMES);
+        assertTrue("slow backlog not reported", fanOut.getQueuedFrames() > 0);
+        assertEquals(-1, fanOut.getCpuTimeNs());
+        fanOut.stop();
+        assertTrue(fanOut.waitForStop(5000));
+        assertEquals(FRAMES, slow.handled.get());
+    }
+
+    // Stand-in for AudioEncoder: a single thread queue that takes delayMs per frame
+    static class QueuedConsumer implements AudioFrameConsumer {
+        final ExecutorService queue = Executors.newSingleThreadExecutor();
+        final AtomicInteger handled = new AtomicInteger();
+        final AtomicInteger offered = new AtomicInteger();
+        final CountDownLatch allHandled = new CountDownLatch(FRAMES);
+        final long delayMs;
+
+        QueuedConsumer(long delayMs) {
+            this.delayMs = delayMs;
+        }
+
+        public void offerAudioEncoder(byte[] input, long presentationTimeStampNs) {
+            offered.incrementAndGet();
+            queue.submit(new Runnable() {
+                public void run() {
+                    try {
+                        Thread.sleep(delayMs);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    handled.incrementAndGet();
+                    allHandled.countDown();
+                }
+            });
+        }
+
+        public void stop() {
+            queue.shutdown();
+        }
+
+        public boolean waitForStop(long timeoutMs) throws InterruptedException {
+            return queue.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+
+        public int getQueuedFrames() {
+            return offered.get() - handled.get();
+        }
+
+        public long getCpuTimeNs() {
+            return -1;
+        }
+    }
+}
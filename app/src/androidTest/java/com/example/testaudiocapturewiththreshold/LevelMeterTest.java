@@ -0,0 +1,120 @@
+package com.example.testaudiocapturewiththreshold;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Checks the packed meter value, that frames are only measured while the reader polls, that a
+ * reader polling while the capture thread publishes never sees fields from different frames,
+ * and the states CaptureSession publishes.
+ */
+public class LevelMeterTest extends TestCase {
+    private static final int SAMPLE_RATE = 44100;
+    private static final int FRAME = 1024;
+    private static final long SECOND = 1000000000L;
+
+    public void testPackRoundTrip() {
+        long value = LevelMeter.pack(0xABCDEF, LevelMeter.STATE_SILENCE, 32768, 1234);
+        assertEquals(0xABCDEF, LevelMeter.sequenceOf(value));
+        assertEquals(LevelMeter.STATE_SILENCE, LevelMeter.stateOf(value));
+        assertEquals(32768, LevelMeter.peakOf(value));
+        assertEquals(1234, LevelMeter.rmsOf(value));
+        assertEquals(0xFFFF, LevelMeter.peakOf(LevelMeter.pack(1, 0, 100000, 0)));
+    }
+
+    public void testMeasuresFrame() {
+        LevelMeter meter = new LevelMeter();
+        short[] frame = new short[FRAME];
+        for (int i = 0; i < FRAME; i++) {
+            frame[i] = (short) (i % 2 == 0 ? 1000 : -1000);
+        }
+        frame[7] = Short.MIN_VALUE;
+        meter.publish(frame, FRAME - 1, LevelMeter.STATE_VOICE);
+        long value = meter.read();
+        assertEquals(32768, LevelMeter.peakOf(value));
+        assertEquals(LevelMeter.STATE_VOICE, LevelMeter.stateOf(value));
+        assertEquals(1, LevelMeter.sequenceOf(value));
+    }
+
+    public void testMeasuresOnlyWhenPolled() {
+        LevelMeter meter = new LevelMeter();
+        short[] quiet = new short[FRAME];
+        short[] loud = new short[FRAME];
+        Arrays.fill(loud, (short) 1000);
+        meter.publish(quiet, FRAME, LevelMeter.STATE_SILENCE);
+        meter.publish(loud, FRAME, LevelMeter.STATE_VOICE);  // nobody read the first value, skipped
+        long value = meter.read();
+        assertEquals(1, LevelMeter.sequenceOf(value));
+        assertEquals(0, LevelMeter.peakOf(value));
+
+        meter.publish(loud, FRAME, LevelMeter.STATE_VOICE);
+        meter.publish(quiet, FRAME, LevelMeter.STATE_SILENCE);
+        value = meter.read();
+        assertEquals(2, LevelMeter.sequenceOf(value));
+        assertEquals(1000, LevelMeter.peakOf(value));
+        assertEquals(LevelMeter.STATE_VOICE, LevelMeter.stateOf(value));
+    }
+
+    public void testReaderNeverSeesTornValue() throws Exception {
+        final LevelMeter meter = new LevelMeter();
+        final AtomicBoolean running = new AtomicBoolean(true);
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                int i = 0;
+                while (running.get()) {
+                    i = (i + 1) % 30000;
+                    meter.publish(i, i, i % 4); // all fields derived from the same frame
+                }
+            }
+        });
+        writer.start();
+        int previousSequence = 0, reads = 0;
+        long end = System.currentTimeMillis() + 200;
+        while (System.currentTimeMillis() < end) {
+            long value = meter.read();
+            assertEquals(LevelMeter.peakOf(value), LevelMeter.rmsOf(value));
+            assertEquals(LevelMeter.peakOf(value) % 4, LevelMeter.stateOf(value));
+            int sequence = LevelMeter.sequenceOf(value);
+            assertTrue(sequence >= previousSequence || previousSequence - sequence > 0x800000); // wraps at 2^24
+            previousSequence = sequence;
+            reads++;
+        }
+        running.set(false);
+        writer.join();
+        assertTrue(reads > 0);
+    }
+
+    public void testSessionPublishesDetectorState() throws Exception {
+        LevelMeter meter = new LevelMeter();
+        CaptureSession session = new CaptureSession(new CascadeDetector((short) 500), new SampleClock(SAMPLE_RATE),
+                new SampleClock(SAMPLE_RATE), SECOND, 3 * SECOND, new CaptureSession.EncoderFactory() {
+            public AudioFrameConsumer createEncoder(CaptureSession session) throws IOException {
+                return new CaptureSessionTest.RecordingConsumer();
+            }
+        });
+        session.setLevelMeter(meter);
+        short[] voice = new short[FRAME];
+        Arrays.fill(voice, (short) 1000);
+        short[] silence = new short[FRAME];
+
+        session.processFrame(silence, FRAME);
+        assertEquals(LevelMeter.STATE_SILENCE, LevelMeter.stateOf(meter.read()));
+        session.processFrame(voice, FRAME);
+        assertEquals(LevelMeter.STATE_VOICE, LevelMeter.stateOf(meter.read()));
+        assertEquals(1000, LevelMeter.peakOf(meter.read()));
+        session.processFrame(silence, FRAME);
+        assertEquals(LevelMeter.STATE_PAUSE_RECORDED, LevelMeter.stateOf(meter.read()));
+        assertEquals(0, LevelMeter.peakOf(meter.read()));
+        for (int i = 0; i < 2 * SAMPLE_RATE / FRAME; i++) {
+            session.processFrame(silence, FRAME);
+        }
+        assertEquals(LevelMeter.STATE_PAUSE_RECORDED, LevelMeter.stateOf(meter.read()));  // not polled meanwhile
+        session.processFrame(silence, FRAME);
+        assertEquals(LevelMeter.STATE_SILENCE, LevelMeter.stateOf(meter.read()));
+        assertEquals(5, LevelMeter.sequenceOf(meter.read()));
+        session.finish(1000);
+    }
+}
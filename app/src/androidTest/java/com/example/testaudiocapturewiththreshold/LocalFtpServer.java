@@ -0,0 +1,137 @@
+package com.example.testaudiocapturewiththreshold;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Loopback stand-in for the FTP server, just enough of RFC 959 for FTPClient.storeFile in
+ * active mode (USER, PASS, TYPE, CWD, PORT, STOR, QUIT). Stored files are kept in memory.
+ */
+public class LocalFtpServer {
+    private final ServerSocket serverSocket;
+    private final Thread acceptThread;
+    private final Map<String, byte[]> uploads = new ConcurrentHashMap<String, byte[]>();
+    private volatile boolean running = true;
+
+    public LocalFtpServer() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        acceptThread = new Thread(new Runnable() {
+            public void run() {
+                acceptLoop();
+            }
+        }, "LocalFtpServer");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public String getHost() {
+        return "127.0.0.1";
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public byte[] getUpload(String name) {
+        return uploads.get(name);
+    }
+
+    public void close() throws IOException {
+        running = false;
+        serverSocket.close();
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                final Socket socket = serverSocket.accept();
+                Thread handler = new Thread(new Runnable() {
+                    public void run() {
+                        handle(socket);
+                    }
+                }, "LocalFtpServer-session");
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                if (running) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void handle(Socket control) {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(control.getInputStream(), "US-ASCII"));
+            OutputStream out = control.getOutputStream();
+            reply(out, "220 ready");
+            String dataHost = null;
+            int dataPort = -1;
+            String line;
+            while ((line = in.readLine()) != null) {
+                String command = line.split(" ")[0].toUpperCase();
+                String argument = line.length() > command.length() ? line.substring(command.length() + 1) : "";
+                if ("USER".equals(command)) {
+                    reply(out, "331 password required");
+                } else if ("PASS".equals(command)) {
+                    reply(out, "230 logged in");
+                } else if ("TYPE".equals(command)) {
+                    reply(out, "200 type set");
+                } else if ("CWD".equals(command)) {
+                    reply(out, "250 directory changed");
+                } else if ("PORT".equals(command)) {
+                    String[] fields = argument.split(",");
+                    dataHost = fields[0] + "." + fields[1] + "." + fields[2] + "." + fields[3];
+                    dataPort = Integer.parseInt(fields[4]) * 256 + Integer.parseInt(fields[5]);
+                    reply(out, "200 port set");
+                } else if ("STOR".equals(command)) {
+                    reply(out, "150 opening data connection");
+                    Socket data = new Socket(dataHost, dataPort);
+                    try {
+                        uploads.put(argument, readAll(data.getInputStream()));
+                    } finally {
+                        data.close();
+                    }
+                    reply(out, "226 transfer complete");
+                } else if ("QUIT".equals(command)) {
+                    reply(out, "221 bye");
+                    break;
+                } else {
+                    reply(out, "502 not implemented");
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                control.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static void reply(OutputStream out, String message) throws IOException {
+        out.write((message + "\r\n").getBytes("US-ASCII"));
+        out.flush();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        byte[] buffer = new byte[16384];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            data.write(buffer, 0, read);
+        }
+        return data.toByteArray();
+    }
+}
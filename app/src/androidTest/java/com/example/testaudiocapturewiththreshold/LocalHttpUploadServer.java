@@ -0,0 +1,254 @@
+package com.example.testaudiocapturewiththreshold;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loopback stand-in for the HTTP upload server. Accepts chunked PUT requests, keeps every
+ * uploaded body in memory keyed by the last path segment and answers 201. Long runs can turn
+ * retention off so that only the counters grow. A body that does not match its CRC-32C header
+ * is refused with 422, and the server can damage received bodies or hang up without answering
+ * to simulate a bad link.
+ */
+public class LocalHttpUploadServer {
+    private final ServerSocket serverSocket;
+    private final Thread acceptThread;
+    private final Map<String, byte[]> uploads = new ConcurrentHashMap<String, byte[]>();
+    private final AtomicInteger acceptedCount = new AtomicInteger();
+    private final AtomicLong acceptedBytes = new AtomicLong();
+    private final AtomicInteger checksumMismatches = new AtomicInteger();
+    private final AtomicInteger uploadsToCorrupt = new AtomicInteger();
+    private final AtomicInteger connectionsToDrop = new AtomicInteger();
+    private final AtomicInteger droppedConnections = new AtomicInteger();
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final AtomicInteger maxOpenConnections = new AtomicInteger();
+    private volatile long responseDelayMs = 0;
+    private volatile int responseStatus = 201;
+    private volatile boolean retainUploads = true;
+    private volatile boolean running = true;
+
+    public LocalHttpUploadServer() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        acceptThread = new Thread(new Runnable() {
+            public void run() {
+                acceptLoop();
+            }
+        }, "LocalHttpUploadServer");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public String getUrl() {
+        return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/upload/";
+    }
+
+    public byte[] getUpload(String name) {
+        return uploads.get(name);
+    }
+
+    public int getUploadCount() {
+        return uploads.size();
+    }
+
+    /** Uploads answered with a 2xx status, retained or not. */
+    public int getAcceptedCount() {
+        return acceptedCount.get();
+    }
+
+    public long getAcceptedBytes() {
+        return acceptedBytes.get();
+    }
+
+    /** When false, accepted bodies are only counted, so a soak run does not fill the heap. */
+    public void setRetainUploads(boolean retain) {
+        retainUploads = retain;
+    }
+
+    /** Uploads refused because the body did not match the checksum header. */
+    public int getChecksumMismatches() {
+        return checksumMismatches.get();
+    }
+
+    /** Flips one bit in the next count received bodies, before they are verified. */
+    public void corruptNextUploads(int count) {
+        uploadsToCorrupt.set(count);
+    }
+
+    /** Closes the next count connections after reading the body, without a status line. */
+    public void dropNextConnections(int count) {
+        connectionsToDrop.set(count);
+    }
+
+    /** Connections closed without an answer. */
+    public int getDroppedConnections() {
+        return droppedConnections.get();
+    }
+
+    /** Most connections that were open at the same time. */
+    public int getMaxOpenConnections() {
+        return maxOpenConnections.get();
+    }
+
+    /** Holds every connection this long after the body was read, before answering. */
+    public void setResponseDelayMs(long delayMs) {
+        responseDelayMs = delayMs;
+    }
+
+    /** Status code answered to every following request, e.g. 500 to simulate a refusing server. */
+    public void setResponseStatus(int status) {
+        responseStatus = status;
+    }
+
+    public void close() throws IOException {
+        running = false;
+        serverSocket.close();
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                final Socket socket = serverSocket.accept();
+                Thread handler = new Thread(new Runnable() {
+                    public void run() {
+                        handle(socket);
+                    }
+                }, "LocalHttpUploadServer-connection");
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                if (running) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void handle(Socket socket) {
+        boolean open = true;
+        countOpenConnection();
+        try {
+            InputStream in = socket.getInputStream();
+            String requestLine = readLine(in);
+            Map<String, String> headers = new HashMap<String, String>();
+            String line;
+            while ((line = readLine(in)).length() > 0) {
+                int colon = line.indexOf(':');
+                headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+            }
+            String[] parts = requestLine.split(" ");
+            if (parts.length < 2) {
+                return;  // the client went away before sending a request
+            }
+            String name = parts[1].substring(parts[1].lastIndexOf('/') + 1);
+            byte[] body = "chunked".equalsIgnoreCase(headers.get("transfer-encoding"))
+                    ? readChunkedBody(in)
+                    : readBody(in, Integer.parseInt(headers.get("content-length")));
+            if (connectionsToDrop.getAndDecrement() > 0) {
+                droppedConnections.incrementAndGet();
+                return;
+            }
+            if (body.length > 0 && uploadsToCorrupt.getAndDecrement() > 0) {
+                body[body.length / 2] ^= 0x10;
+            }
+            int status = responseStatus;
+            String checksum = headers.get(HttpUploadTransport.CHECKSUM_HEADER.toLowerCase());
+            if (checksum != null && Crc32c.parseHex(checksum) != checksumOf(body)) {
+                checksumMismatches.incrementAndGet();
+                status = HttpUploadTransport.STATUS_CHECKSUM_MISMATCH;
+            }
+            if ("PUT".equals(parts[0]) && status >= 200 && status < 300) {
+                acceptedCount.incrementAndGet();
+                acceptedBytes.addAndGet(body.length);
+                if (retainUploads) {
+                    uploads.put(name, body);
+                }
+            }
+            if (responseDelayMs > 0) {
+                Thread.sleep(responseDelayMs);
+            }
+            // the client may start its next upload as soon as it has the answer
+            openConnections.decrementAndGet();
+            open = false;
+            OutputStream out = socket.getOutputStream();
+            out.write(("HTTP/1.1 " + status + " Status\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+            out.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (open) {
+                openConnections.decrementAndGet();
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static long checksumOf(byte[] body) {
+        Crc32c crc = new Crc32c();
+        crc.update(body, 0, body.length);
+        return crc.getValue();
+    }
+
+    private void countOpenConnection() {
+        int open = openConnections.incrementAndGet();
+        int max;
+        while (open > (max = maxOpenConnections.get()) && !maxOpenConnections.compareAndSet(max, open)) {
+            // another connection raised the maximum meanwhile, try again
+        }
+    }
+
+    private static byte[] readChunkedBody(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        while (true) {
+            int size = Integer.parseInt(readLine(in).trim(), 16);
+            if (size == 0) {
+                readLine(in); // blank line after the last chunk
+                return body.toByteArray();
+            }
+            body.write(readBody(in, size));
+            readLine(in); // CRLF after the chunk data
+        }
+    }
+
+    private static byte[] readBody(InputStream in, int length) throws IOException {
+        byte[] data = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int read = in.read(data, offset, length - offset);
+            if (read < 0) {
+                throw new IOException("truncated body");
+            }
+            offset += read;
+        }
+        return data;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                break;
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+}
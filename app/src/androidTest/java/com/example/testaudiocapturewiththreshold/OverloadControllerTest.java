@@ -0,0 +1,225 @@
+package com.example.testaudiocapturewiththreshold;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Drives a CaptureSession with encoders that report a chosen backlog and checks when the
+ * controller steps the profile down or up, that a change only starts a new encoder at a pause
+ * that is not recorded, and that frames are shed rather than encoded while the backlog is too far
+ * behind. The load is fed CPU samples directly.
+ */
+public class OverloadControllerTest extends TestCase {
+    private static final int SAMPLE_RATE = 44100;
+    private static final int FRAME = 1024;
+    private static final long SECOND = 1000000000L;
+    private static final long FRAME_NS = FRAME * SECOND / SAMPLE_RATE;
+
+    private final List<CaptureSessionTest.RecordingConsumer> mEncoders = new ArrayList<CaptureSessionTest.RecordingConsumer>();
+    private OverloadController mController;
+    private CaptureSession mSession;
+    private short[] mVoice;
+    private short[] mSilence;
+
+    @Override
+    protected void setUp() {
+        mController = new OverloadController(SAMPLE_RATE);
+        mSession = new CaptureSession(new CascadeDetector((short) 500), new SampleClock(SAMPLE_RATE),
+                new SampleClock(SAMPLE_RATE), SECOND, 60 * SECOND, new CaptureSession.EncoderFactory() {
+            public AudioFrameConsumer createEncoder(CaptureSession session) throws IOException {
+                CaptureSessionTest.RecordingConsumer encoder = new CaptureSessionTest.RecordingConsumer();
+                mEncoders.add(encoder);
+                return encoder;
+            }
+        });
+        mSession.setOverloadController(mController);
+        mVoice = new short[FRAME];
+        Arrays.fill(mVoice, (short) 1000);
+        mSilence = new short[FRAME];
+    }
+
+    public void testStepsDownAtUnrecordedPause() throws Exception {
+        mSession.processFrame(mVoice, FRAME);
+        CaptureSessionTest.RecordingConsumer first = mEncoders.get(0);
+        first.queuedFrames = (int) (1.5 * OverloadController.DEFAULT_LAG_BUDGET_NS / FRAME_NS);
+        mSession.processFrame(mVoice, FRAME);
+        assertTrue(mController.hasPendingChange());
+        assertFalse(mController.isShedding());
+
+        // the natural pause is still recorded by the same encoder
+        mSession.processFrame(mSilence, FRAME);
+        assertEquals(QualityProfile.FULL, mController.getProfile());
+        assertFalse(first.stopped);
+
+        pause(2 * SECOND);
+        assertTrue(first.stopped);
+        assertFalse(mSession.hasEncoder());
+        assertEquals(QualityProfile.LOW_BIT_RATE, mController.getProfile());
+
+        mSession.processFrame(mVoice, FRAME);
+        assertEquals(2, mEncoders.size());
+        mSession.finish(100);
+    }
+
+    public void testShedsFramesWhenFarBehind() throws Exception {
+        mSession.processFrame(mVoice, FRAME);
+        CaptureSessionTest.RecordingConsumer first = mEncoders.get(0);
+        first.queuedFrames = (int) (4 * OverloadController.DEFAULT_LAG_BUDGET_NS / FRAME_NS);
+        for (int i = 0; i < 3; i++) {
+            mSession.processFrame(mVoice, FRAME);
+        }
+        // the lagging encoder gets no more frames, and no second encoder is started next to it
+        assertTrue(mController.isShedding());
+        assertEquals(1, first.frames.size());
+        assertFalse(first.stopped);
+        assertEquals(1, mEncoders.size());
+
+        // still behind, though less than the hard limit: keep shedding until within the budget
+        first.queuedFrames = (int) (2 * OverloadController.DEFAULT_LAG_BUDGET_NS / FRAME_NS);
+        mSession.processFrame(mVoice, FRAME);
+        assertEquals(1, first.frames.size());
+        first.queuedFrames = (int) (OverloadController.DEFAULT_LAG_BUDGET_NS / FRAME_NS);
+        mSession.processFrame(mVoice, FRAME);
+        assertFalse(mController.isShedding());
+        assertEquals(2, first.frames.size());
+        // shed frames are not on the timeline
+        assertEquals(FRAME * SECOND / SAMPLE_RATE, (long) first.timestamps.get(1));
+        assertEquals(4, mController.getShedFrames());
+        assertTrue(mController.statistics().contains("4 frames shed in 1 episodes"));
+
+        // the step down requested meanwhile waits for a pause
+        assertEquals(QualityProfile.FULL, mController.getProfile());
+        pause(2 * SECOND);
+        assertEquals(QualityProfile.LOW_BIT_RATE, mController.getProfile());
+        mSession.finish(100);
+    }
+
+    public void testLagIncludesEncodersStillDraining() throws Exception {
+        mSession.processFrame(mVoice, FRAME);
+        CaptureSessionTest.RecordingConsumer first = mEncoders.get(0);
+        first.queuedFrames = (int) (1.5 * OverloadController.DEFAULT_LAG_BUDGET_NS / FRAME_NS);
+        first.draining = true;
+        mSession.processFrame(mVoice, FRAME);
+        pause(2 * SECOND);
+        assertTrue(first.stopped);
+
+        // the new encoder has nothing queued, but the old one is still that far behind
+        mSession.processFrame(mVoice, FRAME);
+        mSession.processFrame(mVoice, FRAME);
+        assertEquals(2, mEncoders.size());
+        assertEquals(first.queuedFrames * FRAME_NS, mController.getLagNs());
+
+        first.queuedFrames = 0;
+        first.draining = false;
+        mSession.processFrame(mVoice, FRAME);
+        assertEquals(0, mController.getLagNs());
+        assertTrue(mSession.finish(100));
+    }
+
+    public void testDecimatesAndDropsPauses() throws Exception {
+        mController = new OverloadController(SAMPLE_RATE, OverloadController.DEFAULT_LAG_BUDGET_NS,
+                OverloadController.DEFAULT_CPU_BUDGET, QualityProfile.PAUSES_DROPPED);
+        mSession.setOverloadController(mController);
+        mSession.processFrame(mVoice, FRAME);
+        mSession.processFrame(mSilence, FRAME);
+        CaptureSessionTest.RecordingConsumer encoder = mEncoders.get(0);
+        assertEquals(1, encoder.frames.size());  // the pause was not recorded
+        assertEquals(FRAME, encoder.frames.get(0).length);  // half the samples, two bytes each
+        mSession.finish(100);
+    }
+
+    public void testStepsUpAfterCalmPeriod() throws Exception {
+        mController = new OverloadController(SAMPLE_RATE, OverloadController.DEFAULT_LAG_BUDGET_NS,
+                OverloadController.DEFAULT_CPU_BUDGET, QualityProfile.HALF_SAMPLE_RATE);
+        mSession.setOverloadController(mController);
+        long frames = OverloadController.RECOVERY_NS / FRAME_NS + 1;
+        for (long i = 0; i < frames; i++) {
+            mSession.processFrame(mVoice, FRAME);
+        }
+        assertTrue(mController.hasPendingChange());
+        assertEquals(QualityProfile.HALF_SAMPLE_RATE, mController.getProfile());
+        pause(2 * SECOND);
+        assertEquals(QualityProfile.LOW_BIT_RATE, mController.getProfile());
+        assertTrue(mEncoders.get(0).stopped);
+        mSession.finish(100);
+    }
+
+    public void testCancelsStepDownWhenLagClears() throws Exception {
+        mSession.processFrame(mVoice, FRAME);
+        CaptureSessionTest.RecordingConsumer first = mEncoders.get(0);
+        first.queuedFrames = (int) (1.5 * OverloadController.DEFAULT_LAG_BUDGET_NS / FRAME_NS);
+        mSession.processFrame(mVoice, FRAME);
+        assertTrue(mController.hasPendingChange());
+        first.queuedFrames = 0;
+        mSession.processFrame(mVoice, FRAME);
+        assertFalse(mController.hasPendingChange());
+        pause(2 * SECOND);
+        assertFalse(first.stopped);
+        mSession.finish(100);
+    }
+
+    public void testCpuIsSampledAboutOnceASecond() {
+        OverloadController controller = new OverloadController(SAMPLE_RATE);
+        int samples = 0;
+        long encoderCpuNs = 0;
+        for (int i = 0; i < 10 * SAMPLE_RATE / FRAME; i++) {
+            controller.onFrame(FRAME, 0);
+            encoderCpuNs += FRAME_NS;  // the encoder is busy all the time
+            if (controller.isCpuSampleDue()) {
+                controller.onCpuSample(encoderCpuNs, 0);
+                samples++;
+            }
+        }
+        assertEquals(10, samples);
+        assertTrue(controller.getLoad() > OverloadController.DEFAULT_CPU_BUDGET);
+        assertTrue(controller.hasPendingChange());
+    }
+
+    public void testUnknownCpuTimeLeavesLoadAlone() {
+        OverloadController controller = new OverloadController(SAMPLE_RATE);
+        long encoderCpuNs = 0;
+        for (int i = 0; i < 5; i++) {
+            second(controller);
+            controller.onCpuSample(-1, i * SECOND);
+        }
+        assertEquals(0.0, controller.getLoad());
+        assertFalse(controller.hasPendingChange());
+
+        // a busy encoder, then the platform stops reporting: the load is kept, not read as idle
+        for (int i = 0; i < 10; i++) {
+            second(controller);
+            encoderCpuNs += SECOND;
+            controller.onCpuSample(encoderCpuNs, 0);
+        }
+        double load = controller.getLoad();
+        assertTrue(load > OverloadController.DEFAULT_CPU_BUDGET);
+        second(controller);
+        controller.onCpuSample(-1, 0);
+        second(controller);
+        controller.onCpuSample(encoderCpuNs + SECOND, -1);
+        assertEquals(load, controller.getLoad());
+        // reporting again only sets a new baseline
+        second(controller);
+        controller.onCpuSample(encoderCpuNs + 2 * SECOND, 0);
+        assertEquals(load, controller.getLoad());
+        second(controller);
+        assertTrue(controller.hasPendingChange());
+    }
+
+    // One second of audio without a backlog
+    private static void second(OverloadController controller) {
+        for (int i = 0; i < SAMPLE_RATE / FRAME + 1; i++) {
+            controller.onFrame(FRAME, 0);
+        }
+    }
+
+    private void pause(long lengthNs) throws IOException {
+        for (long i = 0; i < lengthNs / FRAME_NS + 1; i++) {
+            mSession.processFrame(mSilence, FRAME);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.example.testaudiocapturewiththreshold;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/**
+ * Checks the native kernels against the Java fallback and ShortToByte, and the detector on a
+ * direct buffer against the array scan. Without libndk1 only the Java path is exercised. The
+ * per-frame cost is measured by app/benchmark (make -C app/benchmark kernels).
+ */
+public class PcmKernelsTest extends TestCase {
+    private static final String TAG = PcmKernelsTest.class.getSimpleName();
+    private static final int FRAME = 1024;
+
+    private short[] samples;
+    private ByteBuffer pcm;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Random random = new Random(11);
+        samples = new short[FRAME + 13]; // not a multiple of the block size
+        samples[0] = Short.MIN_VALUE;
+        samples[1] = Short.MAX_VALUE;
+        for (int i = 2; i < samples.length; i++) {
+            samples[i] = (short) random.nextInt();
+        }
+        pcm = ByteBuffer.allocateDirect(samples.length * 2).order(ByteOrder.nativeOrder());
+        pcm.asShortBuffer().put(samples);
+    }
+
+    public void testPackMatchesShortToByte() {
+        ByteBuffer out = ByteBuffer.allocateDirect(samples.length * 2);
+        PcmKernels.packLittleEndian(pcm, samples.length, out);
+        byte[] expected = CaptureSession.ShortToByte(samples, samples.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], out.get(i));
+        }
+    }
+
+    public void testNativeMatchesJava() {
+        if (!PcmKernels.isNativeAvailable()) {
+            Log.i(TAG, "libndk1 not loaded (" + PcmKernels.getNativeLoadError() + "), Java path only");
+            return;
+        }
+        int n = samples.length;
+        assertEquals(PcmKernels.javaPeak(pcm, n), PcmKernels.nativePeak(pcm, n));
+        assertEquals(32768, PcmKernels.nativePeak(pcm, n));
+        assertEquals(PcmKernels.javaSumOfSquares(pcm, n), PcmKernels.nativeSumOfSquares(pcm, n));
+
+        ByteBuffer javaOut = ByteBuffer.allocateDirect(n * 2);
+        ByteBuffer nativeOut = ByteBuffer.allocateDirect(n * 2);
+        PcmKernels.javaPackLittleEndian(pcm, n, javaOut);
+        PcmKernels.nativePackLittleEndian(pcm, n, nativeOut);
+        assertEquals(javaOut, nativeOut);
+
+        javaOut.clear();
+        nativeOut.clear();
+        assertEquals(PcmKernels.javaBlockMax(pcm, n, 64, javaOut), PcmKernels.nativeBlockMax(pcm, n, 64, nativeOut));
+        assertEquals(javaOut, nativeOut);
+    }
+
+    public void testRmsOfSquareWave() {
+        ByteBuffer square = ByteBuffer.allocateDirect(FRAME * 2).order(ByteOrder.nativeOrder());
+        for (int i = 0; i < FRAME; i++) {
+            square.putShort(2 * i, (short) (i % 2 == 0 ? 1000 : -1000));
+        }
+        assertEquals(1000.0, PcmKernels.rms(square, FRAME), 1e-9);
+        assertEquals(1000, PcmKernels.peak(square, FRAME));
+    }
+
+    public void testBlockMaxCountsPartialBlock() {
+        ByteBuffer out = ByteBuffer.allocateDirect(64);
+        assertEquals((samples.length + 255) / 256, PcmKernels.blockMax(pcm, samples.length, 256, out));
+    }
+
+    public void testArrayKernelsMatchBufferKernels() {
+        int n = samples.length;
+        assertEquals(PcmKernels.peak(pcm, n), PcmKernels.peak(samples, n));
+        assertEquals(PcmKernels.rms(pcm, n), PcmKernels.rms(samples, n), 1e-9);
+        byte[] fromArray = new byte[n * 2];
+        byte[] fromBuffer = new byte[n * 2];
+        PcmKernels.packLittleEndian(samples, n, fromArray);
+        PcmKernels.packLittleEndian(pcm, n, fromBuffer);
+        byte[] expected = CaptureSession.ShortToByte(samples, n);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], fromArray[i]);
+            assertEquals(expected[i], fromBuffer[i]);
+        }
+    }
+
+    public void testDetectorOnBufferMatchesArray() {
+        Random random = new Random(5);
+        short threshold = 500;
+        CascadeDetector onArray = new CascadeDetector(threshold);
+        CascadeDetector onBuffer = new CascadeDetector(threshold);
+        short[] frame = new short[FRAME];
+        ByteBuffer direct = ByteBuffer.allocateDirect(FRAME * 2).order(ByteOrder.nativeOrder());
+        short[] edges = { 500, -500, 499, -501, Short.MIN_VALUE, Short.MAX_VALUE };
+        for (int f = 0; f < 2000; f++) {
+            int amplitude = 1 + random.nextInt(400);
+            for (int i = 0; i < FRAME; i++) {
+                frame[i] = (short) (random.nextInt(2 * amplitude) - amplitude);
+            }
+            if (f % 3 == 0) {
+                frame[random.nextInt(FRAME)] = edges[random.nextInt(edges.length)];
+            }
+            int count = 1 + random.nextInt(FRAME);
+            direct.clear();
+            direct.asShortBuffer().put(frame);
+            assertEquals(CascadeDetector.searchThreshold(frame, count, threshold), onBuffer.search(direct, count));
+            assertEquals(onArray.search(frame, count), CascadeDetector.searchThreshold(frame, count, threshold));
+        }
+        assertEquals(onArray.getFramesDetected(), onBuffer.getFramesDetected());
+    }
+}
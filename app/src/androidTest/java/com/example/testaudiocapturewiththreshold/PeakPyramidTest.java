@@ -0,0 +1,261 @@
+package com.example.testaudiocapturewiththreshold;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Builds peak pyramids from known signals and checks the rendered columns against a direct scan
+ * of the samples, plus the sidecars written through CaptureSession, one per segment, and the
+ * cost of rendering an hour of audio.
+ */
+public class PeakPyramidTest extends TestCase {
+    private static final String TAG = PeakPyramidTest.class.getSimpleName();
+    private static final int SAMPLE_RATE = 44100;
+    private static final long SECOND = 1000000000L;
+
+    private File sidecar;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        sidecar = File.createTempFile("recording", PeakPyramid.SIDECAR_SUFFIX);
+        sidecar.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        sidecar.delete();
+        super.tearDown();
+    }
+
+    public void testBucketsMatchDirectScan() throws Exception {
+        short[] signal = randomSignal(new Random(1), PeakPyramid.BASE_BLOCK * 64 * 5 + 777);
+        build(signal, 1000);
+        PeakPyramidReader reader = new PeakPyramidReader(sidecar);
+        try {
+            assertEquals(signal.length, reader.getTotalSamples());
+            for (int level = 0; level < reader.getLevels(); level++) {
+                long block = block(level);
+                assertEquals((signal.length + block - 1) / block, reader.getBucketCount(level));
+            }
+            // one pixel per bucket of level 3, the last one partial
+            long block = block(3);
+            int pixels = (int) reader.getBucketCount(3);
+            short[] min = new short[pixels], max = new short[pixels], rms = new short[pixels];
+            assertEquals(3, reader.render(0, pixels * block, pixels, min, max, rms));
+            for (int p = 0; p < pixels; p++) {
+                int from = (int) (p * block), to = (int) Math.min(signal.length, (p + 1) * block);
+                assertEquals(minOf(signal, from, to), min[p]);
+                assertEquals(maxOf(signal, from, to), max[p]);
+                assertEquals(rmsOf(signal, from, to), rms[p], 2);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testColumnsCoverTheirSamplesAtAnyZoom() throws Exception {
+        short[] signal = randomSignal(new Random(2), SAMPLE_RATE * 30);
+        build(signal, 4410);
+        PeakPyramidReader reader = new PeakPyramidReader(sidecar);
+        try {
+            int[][] views = {{0, signal.length, 300}, {12345, 12345 + SAMPLE_RATE, 800}, {1000, 5000, 640}};
+            for (int[] view : views) {
+                int pixels = view[2];
+                short[] min = new short[pixels], max = new short[pixels], rms = new short[pixels];
+                int level = reader.render(view[0], view[1], pixels, min, max, rms);
+                double samplesPerPixel = (double) (view[1] - view[0]) / pixels;
+                assertTrue(level == 0 || block(level) <= samplesPerPixel);
+                assertTrue(level == reader.getLevels() - 1 || block(level + 1) > samplesPerPixel);
+                for (int p = 0; p < pixels; p++) {
+                    int from = view[0] + (int) (p * samplesPerPixel);
+                    int to = Math.max(from + 1, view[0] + (int) ((p + 1) * samplesPerPixel));
+                    assertTrue(min[p] <= minOf(signal, from, to));
+                    assertTrue(max[p] >= maxOf(signal, from, to));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testSessionWritesSidecarOfRecordedFrames() throws Exception {
+        CaptureSessionTest.RecordingConsumer consumer = new CaptureSessionTest.RecordingConsumer();
+        final CaptureSessionTest.RecordingConsumer encoder = consumer;
+        CaptureSession session = new CaptureSession(new CascadeDetector((short) 500), new SampleClock(SAMPLE_RATE),
+                new SampleClock(SAMPLE_RATE), SECOND, 60 * SECOND, new CaptureSession.EncoderFactory() {
+            public AudioFrameConsumer createEncoder(CaptureSession session) throws IOException {
+                return encoder;
+            }
+        });
+        session.setPeakPyramid(new PeakPyramid(sidecar, SAMPLE_RATE));
+        for (short[] frame : CascadeDetectorTest.buildCorpus(new Random(4), 2000)) {
+            session.processFrame(frame, frame.length);
+        }
+        session.finish(1000);
+        long recorded = 0;
+        for (byte[] frame : consumer.frames) {
+            recorded += frame.length / 2;
+        }
+        PeakPyramidReader reader = new PeakPyramidReader(sidecar);
+        try {
+            assertEquals(recorded, reader.getTotalSamples());
+            assertEquals(SAMPLE_RATE, reader.getSampleRate());
+        } finally {
+            reader.close();
+        }
+        for (int level = 0; level < PeakPyramid.LEVELS; level++) {
+            assertFalse(new File(sidecar.getPath() + "." + level + ".tmp").exists());
+        }
+    }
+
+    public void testEachSegmentGetsItsOwnSidecar() throws Exception {
+        final List<CaptureSessionTest.RecordingConsumer> encoders = new ArrayList<CaptureSessionTest.RecordingConsumer>();
+        final List<File> sidecars = new ArrayList<File>();
+        CaptureSession session = new CaptureSession(new CascadeDetector((short) 500), new SampleClock(SAMPLE_RATE),
+                new SampleClock(SAMPLE_RATE), SECOND, 60 * SECOND, new CaptureSession.EncoderFactory() {
+            public AudioFrameConsumer createEncoder(CaptureSession session) throws IOException {
+                File segmentSidecar = new File(sidecar.getPath() + "." + encoders.size());
+                sidecars.add(segmentSidecar);
+                session.setPeakPyramid(new PeakPyramid(segmentSidecar, SAMPLE_RATE));
+                CaptureSessionTest.RecordingConsumer encoder = new CaptureSessionTest.RecordingConsumer();
+                encoders.add(encoder);
+                return encoder;
+            }
+        });
+        session.setOverloadController(new OverloadController(SAMPLE_RATE));
+        short[] voice = new short[PeakPyramid.BASE_BLOCK];
+        Arrays.fill(voice, (short) 1000);
+        try {
+            for (int i = 0; i < 3; i++) {
+                session.processFrame(voice, voice.length);
+            }
+            // behind, the step down starts a second segment after the pause that is not recorded
+            long frameNs = voice.length * SECOND / SAMPLE_RATE;
+            encoders.get(0).queuedFrames = (int) (1.5 * OverloadController.DEFAULT_LAG_BUDGET_NS / frameNs);
+            session.processFrame(voice, voice.length);
+            short[] silence = new short[voice.length];
+            for (long i = 0; i < 2 * SECOND / frameNs; i++) {
+                session.processFrame(silence, silence.length);
+            }
+            encoders.get(0).queuedFrames = 0;
+            for (int i = 0; i < 5; i++) {
+                session.processFrame(voice, voice.length);
+            }
+            session.finish(1000);
+            assertEquals(2, encoders.size());
+            for (int segment = 0; segment < 2; segment++) {
+                PeakPyramidReader reader = new PeakPyramidReader(sidecars.get(segment));
+                try {
+                    assertEquals(encoders.get(segment).frames.size() * PeakPyramid.BASE_BLOCK, reader.getTotalSamples());
+                } finally {
+                    reader.close();
+                }
+            }
+        } finally {
+            for (File file : sidecars) {
+                file.delete();
+            }
+        }
+    }
+
+    public void testNoSamplesNoSidecar() throws Exception {
+        new PeakPyramid(sidecar, SAMPLE_RATE).finish();
+        assertFalse(sidecar.exists());
+    }
+
+    public void testHourOverviewCost() throws Exception {
+        short[] frame = new short[PeakPyramid.BASE_BLOCK];
+        Random random = new Random(5);
+        PeakPyramid pyramid = new PeakPyramid(sidecar, SAMPLE_RATE);
+        long start = System.nanoTime();
+        for (long samples = 0; samples < 3600L * SAMPLE_RATE; samples += frame.length) {
+            frame[random.nextInt(frame.length)] = (short) random.nextInt();
+            pyramid.add(frame, frame.length);
+        }
+        pyramid.finish();
+        long buildNs = System.nanoTime() - start;
+
+        PeakPyramidReader reader = new PeakPyramidReader(sidecar);
+        try {
+            int pixels = 1080;
+            short[] min = new short[pixels], max = new short[pixels], rms = new short[pixels];
+            long renderNs = Long.MAX_VALUE;
+            for (int round = 0; round < 20; round++) {  // whole hour, then zoomed into the middle
+                long total = reader.getTotalSamples();
+                long from = round % 2 == 0 ? 0 : total / 2, to = round % 2 == 0 ? total : total / 2 + SAMPLE_RATE * 10;
+                long t = System.nanoTime();
+                reader.render(from, to, pixels, min, max, rms);
+                renderNs = Math.min(renderNs, System.nanoTime() - t);
+            }
+            Log.i(TAG, "1 h of audio: building " + buildNs / 3600 + " ns per second of audio, sidecar "
+                    + sidecar.length() / 1024 + " KB, rendering " + pixels + " px " + renderNs / 1000 + " us");
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void build(short[] signal, int chunk) throws IOException {
+        PeakPyramid pyramid = new PeakPyramid(sidecar, SAMPLE_RATE);
+        short[] buffer = new short[chunk];
+        for (int at = 0; at < signal.length; at += chunk) {
+            int count = Math.min(chunk, signal.length - at);
+            System.arraycopy(signal, at, buffer, 0, count);
+            pyramid.add(buffer, count);
+        }
+        pyramid.finish();
+    }
+
+    private static long block(int level) {
+        long block = PeakPyramid.BASE_BLOCK;
+        for (int i = 0; i < level; i++) {
+            block *= PeakPyramid.FACTOR;
+        }
+        return block;
+    }
+
+    // Noise whose amplitude changes every few thousand samples
+    private static short[] randomSignal(Random random, int length) {
+        short[] signal = new short[length];
+        int amplitude = 100;
+        for (int i = 0; i < length; i++) {
+            if (i % 3000 == 0) {
+                amplitude = 1 + random.nextInt(32767);
+            }
+            signal[i] = (short) (random.nextInt(2 * amplitude + 1) - amplitude);
+        }
+        return signal;
+    }
+
+    private static short minOf(short[] signal, int from, int to) {
+        short min = Short.MAX_VALUE;
+        for (int i = from; i < to; i++) {
+            min = (short) Math.min(min, signal[i]);
+        }
+        return min;
+    }
+
+    private static short maxOf(short[] signal, int from, int to) {
+        short max = Short.MIN_VALUE;
+        for (int i = from; i < to; i++) {
+            max = (short) Math.max(max, signal[i]);
+        }
+        return max;
+    }
+
+    private static double rmsOf(short[] signal, int from, int to) {
+        double sum = 0;
+        for (int i = from; i < to; i++) {
+            sum += (double) signal[i] * signal[i];
+        }
+        return Math.sqrt(sum / (to - from));
+    }
+}
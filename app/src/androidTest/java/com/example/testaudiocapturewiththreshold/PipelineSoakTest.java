@@ -0,0 +1,239 @@
+package com.example.testaudiocapturewiththreshold;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.test.InstrumentationTestCase;
+import android.test.InstrumentationTestRunner;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Soak test of the whole capture -> encode -> store -> upload pipeline. Synthetic speech and
+ * silence is fed through CaptureSession into real AudioEncoder/AdtsAudioSink instances, the
+ * recordings go through a RecordingStore with a small quota and are uploaded over
+ * HttpUploadTransport to LocalHttpUploadServer, which refuses every tenth round so retries are
+ * exercised too. Audio is fed faster than real time. Heap, GC time, threads, open file
+ * descriptors and throughput are sampled between recordings, and the test fails if heap, threads
+ * or descriptors grow monotonically or the pipeline cannot keep up with real time.
+ *
+ * The default run is short. For a shift-length run:
+ * adb shell am instrument -w -e soakMinutes 480 -e soakSpeedup 8
+ *     -e class com.example.testaudiocapturewiththreshold.PipelineSoakTest
+ *     com.example.testaudiocapturewiththreshold.test/android.test.InstrumentationTestRunner
+ */
+public class PipelineSoakTest extends InstrumentationTestCase {
+    private static final String TAG = PipelineSoakTest.class.getSimpleName();
+    private static final int SAMPLE_RATE = 44100;
+    private static final int FRAME = 1024;
+    private static final short THRESHOLD = 500;
+    private static final long SECOND = 1000000000L;
+    private static final long NATURAL_PAUSE_NS = 1 * SECOND;
+    private static final long ALLOWABLE_PAUSE_NS = 3 * SECOND;
+    private static final long ENCODER_STOP_TIMEOUT_MS = 10000;
+    private static final long UPLOAD_TIMEOUT_MS = 60000;
+    private static final long STORE_QUOTA_BYTES = 8 * 1024 * 1024;
+    private static final long PREALLOCATION_BYTES = 1024 * 1024;
+    private static final int REFUSE_EVERY = 10;
+    private static final long DEFAULT_SOAK_MINUTES = 2;
+    private static final long DEFAULT_SPEEDUP = 8;
+    private static final int SAMPLES_PER_RUN = 40;
+
+    private Context context;
+    private File storeDir;
+    private LocalHttpUploadServer server;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        context = getInstrumentation().getTargetContext();
+        storeDir = new File(context.getCacheDir(), "soak");
+        deleteRecursively(storeDir);
+        server = new LocalHttpUploadServer();
+        server.setRetainUploads(false);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.close();
+        deleteRecursively(storeDir);
+        super.tearDown();
+    }
+
+    public void testPipelineSoak() throws Exception {
+        long durationMs = TimeUnit.MINUTES.toMillis(argument("soakMinutes", DEFAULT_SOAK_MINUTES));
+        long speedup = argument("soakSpeedup", DEFAULT_SPEEDUP);
+        long sampleIntervalMs = Math.max(1000, durationMs / SAMPLES_PER_RUN);
+
+        RecordingStore store = new RecordingStore(storeDir, STORE_QUOTA_BYTES);
+        SpeechSource source = new SpeechSource(new Random(1));
+        SampleClock audioTime = new SampleClock(SAMPLE_RATE); // everything fed so far, paces the run
+        SoakMonitor monitor = new SoakMonitor();
+        short[] buffer = new short[FRAME];
+        int rounds = 0, encoded = 0;
+
+        long startMs = System.currentTimeMillis();
+        long nextSampleMs = startMs;
+        while (System.currentTimeMillis() - startMs < durationMs) {
+            if (System.currentTimeMillis() >= nextSampleMs) {
+                monitor.sample(audioTime.nowNs() / 1000000, server.getAcceptedBytes());
+                nextSampleMs += sampleIntervalMs;
+            }
+            if (recordSession(store, source, buffer, audioTime, speedup, startMs)) {
+                encoded++;
+            }
+            rounds++;
+            server.setResponseStatus(rounds % REFUSE_EVERY == 0 ? 500 : 201);
+            uploadPending(store);
+        }
+        server.setResponseStatus(201);
+        uploadPending(store);
+        monitor.sample(audioTime.nowNs() / 1000000, server.getAcceptedBytes());
+
+        Log.i(TAG, rounds + " sessions, " + encoded + " recordings, " + server.getAcceptedCount() + " uploads, "
+                + audioTime.nowNs() / SECOND + " s of audio, store " + store.getUsedBytes() / 1024 + " KB");
+        assertTrue("no recording was encoded", encoded > 0);
+        assertEquals("recordings left behind", 0, store.pendingUploads().size());
+        assertEquals("uploads differ from what was written", 0, server.getChecksumMismatches());
+        monitor.assertNoMonotonicGrowth(SoakMonitor.Resource.HEAP_BYTES, 1024 * 1024);
+        monitor.assertNoMonotonicGrowth(SoakMonitor.Resource.THREADS, 2);
+        monitor.assertNoMonotonicGrowth(SoakMonitor.Resource.OPEN_FDS, 4);
+        assertTrue("pipeline slower than real time: " + monitor.overallSpeed() + "x", monitor.overallSpeed() >= 1.0);
+    }
+
+    // One recording the way RecordAudio does it, returns whether an encoder was created
+    private boolean recordSession(RecordingStore store, SpeechSource source, short[] buffer, SampleClock audioTime,
+                                  long speedup, long startMs) throws IOException, InterruptedException {
+        final File file = store.createRecording(TestAudioCaptureWithThreshold.OUTPUT_FORMAT_ADTS, PREALLOCATION_BYTES);
+        final AdtsAudioSink[] sink = new AdtsAudioSink[1];
+        CaptureSession session = new CaptureSession(new CascadeDetector(THRESHOLD), new SampleClock(SAMPLE_RATE),
+                new SampleClock(SAMPLE_RATE), NATURAL_PAUSE_NS, ALLOWABLE_PAUSE_NS, new CaptureSession.EncoderFactory() {
+            public AudioFrameConsumer createEncoder(CaptureSession session) throws IOException {
+                sink[0] = new AdtsAudioSink(file, AdtsAudioSink.DEFAULT_SYNC_INTERVAL_US, PREALLOCATION_BYTES);
+                return new AudioEncoder(context, sink[0]);
+            }
+        });
+        do {
+            source.fill(buffer);
+            audioTime.advance(FRAME);
+            long aheadMs = audioTime.nowNs() / 1000000 / speedup - (System.currentTimeMillis() - startMs);
+            if (aheadMs > 0) {
+                Thread.sleep(aheadMs);
+            }
+        } while (session.processFrame(buffer, FRAME));
+        assertTrue("encoder did not stop in time", session.finish(ENCODER_STOP_TIMEOUT_MS));
+        if (sink[0] != null) {
+            assertTrue("no checksum for " + file.getName(), sink[0].getChecksum() != Crc32c.UNKNOWN);
+            store.markComplete(file, sink[0].getChecksum());
+        } else {
+            store.discard(file);
+        }
+        return sink[0] != null;
+    }
+
+    // Same as RecordAudio.uploadRecordings, with a fresh transport every round
+    private void uploadPending(final RecordingStore store) throws IOException, InterruptedException {
+        List<RecordingStore.Recording> pending = store.pendingUploads();
+        if (pending.isEmpty()) {
+            return;
+        }
+        UploadTransport transport = new HttpUploadTransport(server.getUrl());
+        final CountDownLatch done = new CountDownLatch(pending.size());
+        try {
+            for (RecordingStore.Recording recording : pending) {
+                transport.upload(store.getFile(recording), recording.getChecksum(), new UploadTransport.Callback() {
+                    public void onUploadFinished(File uploaded, boolean success, IOException error) {
+                        try {
+                            if (success) {
+                                store.markUploaded(uploaded);
+                            }
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                });
+            }
+            assertTrue("uploads did not finish", done.await(UPLOAD_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        } finally {
+            transport.close();
+        }
+    }
+
+    // Instrumentation argument (am instrument -e key value), or the default
+    private long argument(String key, long fallback) {
+        if (!(getInstrumentation() instanceof InstrumentationTestRunner)) {
+            return fallback;
+        }
+        Bundle arguments = ((InstrumentationTestRunner) getInstrumentation()).getArguments();
+        String value = arguments == null ? null : arguments.getString(key, null);
+        return value == null ? fallback : Long.parseLong(value);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Endless speech-like bursts between pauses, generated frame by frame. Most pauses are
+     * natural, about one in six is longer than the allowable pause and ends the recording.
+     */
+    static class SpeechSource {
+        private final Random random;
+        private boolean voiced = false;
+        private int remaining = 0, length = 0;
+        private double f0, peak;
+        private long sampleIndex = 0;
+
+        SpeechSource(Random random) {
+            this.random = random;
+        }
+
+        void fill(short[] frame) {
+            if (remaining == 0) {
+                nextSegment();
+            }
+            int position = length - remaining--;
+            double envelope = voiced ? peak * Math.sin(Math.PI * (position + 0.5) / length) : 0;
+            int noise = voiced ? 40 : 20 + random.nextInt(80);
+            for (int n = 0; n < frame.length; n++, sampleIndex++) {
+                double x = 0;
+                if (voiced) {
+                    double t = (double) sampleIndex / SAMPLE_RATE;
+                    for (int h = 1; h <= 6; h++) {
+                        x += Math.sin(2 * Math.PI * h * f0 * t + h) / h;
+                    }
+                }
+                double v = envelope * x / 2 + (random.nextDouble() * 2 - 1) * noise;
+                frame[n] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, v));
+            }
+        }
+
+        private void nextSegment() {
+            voiced = !voiced;
+            int framesPerSecond = SAMPLE_RATE / FRAME;
+            if (voiced) {
+                length = 5 + random.nextInt(120);
+                f0 = 90 + random.nextDouble() * 160;
+                peak = THRESHOLD * (1.5 + random.nextDouble() * 6);
+            } else if (random.nextInt(6) == 0) {
+                length = 4 * framesPerSecond + random.nextInt(2 * framesPerSecond); // ends the recording
+            } else {
+                length = 5 + random.nextInt(2 * framesPerSecond);
+            }
+            remaining = length;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package com.example.testaudiocapturewiththreshold;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Exercises the RecordingStore on a scratch directory: quota accounting including the
+ * preallocation reserve, LRU eviction of uploaded recordings only, and reloading the index
+ * after a crash, with interrupted and missing recordings and malformed index lines, and the
+ * quota policy for archives whose preview was uploaded while they wait for Wi-Fi.
+ */
+public class RecordingStoreTest extends TestCase {
+    private static final long QUOTA = 10000;
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        directory = File.createTempFile("store", "");
+        directory.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+        super.tearDown();
+    }
+
+    public void testReserveCountsUntilComplete() throws Exception {
+        RecordingStore store = new RecordingStore(directory, QUOTA);
+        File file = store.createRecording("aac", 4000);
+        assertEquals(4000, store.getUsedBytes());
+        write(file, 1500);
+        store.markComplete(file);
+        assertEquals(1500, store.getUsedBytes());
+        assertEquals(RecordingStore.State.COMPLETE, store.get(file.getName()).getState());
+    }
+
+    public void testNamesAreUniqueWithinOneMillisecond() throws Exception {
+        RecordingStore store = new RecordingStore(directory, QUOTA);
+        File first = store.createRecording("aac", 0);
+        File second = store.createRecording("aac", 0);
+        assertFalse(first.getName().equals(second.getName()));
+    }
+
+    public void testQuotaRefusesWhenNothingIsUploaded() throws Exception {
+        RecordingStore store = new RecordingStore(directory, QUOTA);
+        record(store, 6000);
+        try {
+            store.createRecording("aac", 5000);
+            fail("recording created beyond the quota");
+        } catch (IOException expected) {
+        }
+        assertEquals(6000, store.getUsedBytes());
+    }
+
+    public void testEvictsUploadedInLeastRecentlyUsedOrder() throws Exception {
+        RecordingStore store = new RecordingStore(directory, QUOTA);
+        File oldest = record(store, 3000);
+        File middle = record(store, 3000);
+        File pending = record(store, 3000);
+        store.markUploaded(oldest);
+        store.markUploaded(middle);
+        store.get(oldest.getName());  // now used more recently than middle
+
+        store.createRecording("aac", 1500);
+        assertFalse(middle.exists());
+        assertNull(store.get(middle.getName()));
+        assertTrue(oldest.exists());
+        assertTrue(pending.exists());
+        assertEquals(9000 + 1500 - 3000, store.getUsedBytes());
+
+        // the not uploaded recording is never evicted, even if that means failing
+        try {
+            store.createRecording("aac", 6000);
+            fail("recording created beyond the quota");
+        } catch (IOException expected) {
+        }
+        assertFalse(oldest.exists());
+        assertTrue(pending.exists());
+    }
+
+    public void testEvictsArchiveWhosePreviewWasUploaded() throws Exception {
+        RecordingStore store = new RecordingStore(directory, QUOTA);
+        File archive = record(store, 4000);
+        File preview = companion(store, archive, 500);
+        File waiting = record(store, 4000);  // no preview, must never be evicted
+        File uploaded = record(store, 1000);
+        store.markUploaded(preview);
+        store.markUploaded(uploaded);
+
+        // uploaded recordings go first, the preview is kept as long as its archive is
+        store.createRecording("aac", 1000);
+        assertFalse(uploaded.exists());
+        assertTrue(archive.exists());
+        assertTrue(preview.exists());
+
+        // then the archive whose preview reached the server, recording does not stop
+        store.createRecording("aac", 2000);
+        assertFalse(archive.exists());
+        assertNull(store.get(archive.getName()));
+        assertTrue(preview.exists());
+        assertTrue(waiting.exists());
+        assertEquals(500 + 4000 + 1000 + 2000, store.getUsedBytes());
+
+        // the preview is an ordinary uploaded recording now, an archive without one is not evicted
+        try {
+            store.createRecording("aac", 4000);
+            fail("recording created beyond the quota");
+        } catch (IOException expected) {
+        }
+        assertFalse(preview.exists());
+        assertTrue(waiting.exists());
+    }
+
+    public void testCompanionSharesTheStem() throws Exception {
+        RecordingStore store = new RecordingStore(directory, QUOTA);
+        File archive = store.createRecording("m4a", 0);
+        File preview = store.createCompanion(archive, TestAudioCaptureWithThreshold.PREVIEW_EXTENSION, 0);
+        assertEquals(RecordingStore.stemOf(archive.getName()), RecordingStore.stemOf(preview.getName()));
+        assertTrue(preview.getName().endsWith("." + TestAudioCaptureWithThreshold.PREVIEW_EXTENSION));
+        // a recording in the same millisecond gets a stem of its own
+        File next = store.createRecording("aac", 0);
+        assertFalse(RecordingStore.stemOf(archive.getName()).equals(RecordingStore.stemOf(next.getName())));
+    }
+
+    public void testIndexSurvivesReload() throws Exception {
+        RecordingStore store = new RecordingStore(directory, QUOTA);
+        File uploaded = record(store, 1000);
+        store.markUploaded(uploaded);
+        File pending = record(store, 2000);
+
+        RecordingStore reloaded = new RecordingStore(directory, QUOTA);
+        assertEquals(3000, reloaded.getUsedBytes());
+        assertTrue(reloaded.get(uploaded.getName()).isUploaded());
+        List<RecordingStore.Recording> uploads = reloaded.pendingUploads();
+        assertEquals(1, uploads.size());
+        assertEquals(pending.getName(), uploads.get(0).getName());
+    }
+
+    public void testRecoversInterruptedRecording() throws Exception {
+        RecordingStore store = new RecordingStore(directory, QUOTA);
+        File file = store.createRecording(TestAudioCaptureWithThreshold.OUTPUT_FORMAT_ADTS, 8000);
+        // preallocated space the crashed sink never filled
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[8000]);
+        out.close();
+
+        RecordingStore reloaded = new RecordingStore(directory, QUOTA);
+        RecordingStore.Recording recording = reloaded.get(file.getName());
+        assertEquals(RecordingStore.State.INTERRUPTED, recording.getState());
+        assertEquals(0, recording.getSize());
+        assertEquals(0, file.length());
+        assertEquals(1, reloaded.pendingUploads().size());
+    }
+
+    public void testDropsRecordingsWhoseFileIsMissing() throws Exception {
+        RecordingStore store = new RecordingStore(directory, QUOTA);
+        File neverOpened = store.createRecording("aac", 4000);  // crashed before the encoder started
+        File deleted = record(store, 1000);
+        deleted.delete();
+
+        RecordingStore reloaded = new RecordingStore(directory, QUOTA);
+        assertNull(reloaded.get(neverOpened.getName()));
+        assertNull(reloaded.get(deleted.getName()));
+        assertTrue(reloaded.pendingUploads().isEmpty());
+        assertEquals(0, reloaded.getUsedBytes());
+        assertEquals(0, new RecordingStore(directory, QUOTA).getUsedBytes());
+    }
+
+    public void testSkipsMalformedIndexLines() throws Exception {
+        RecordingStore store = new RecordingStore(directory, QUOTA);
+        File first = record(store, 1000);
+        File second = record(store, 2000);
+        File unknownState = new File(directory, "1.aac");
+        File badSize = new File(directory, "2.aac");
+        write(unknownState, 10);
+        write(badSize, 10);
+        FileOutputStream index = new FileOutputStream(new File(directory, "recordings.idx"), true);
+        try {
+            index.write(("1.aac\tUPLOADING\t10\tfalse\t1\t-\n"
+                    + "2.aac\tCOMPLETE\tten\tfalse\t1\t-\n"
+                    + "truncated\n").getBytes("UTF-8"));
+        } finally {
+            index.close();
+        }
+
+        RecordingStore reloaded = new RecordingStore(directory, QUOTA);
+        assertNotNull(reloaded.get(first.getName()));
+        assertNotNull(reloaded.get(second.getName()));
+        assertNull(reloaded.get(unknownState.getName()));
+        assertNull(reloaded.get(badSize.getName()));
+        assertEquals(3000, reloaded.getUsedBytes());
+        assertEquals(2, reloaded.pendingUploads().size());
+        // the index was rewritten without them
+        assertEquals(3000, new RecordingStore(directory, QUOTA).getUsedBytes());
+    }
+
+    public void testQuotaChangeAppliesToNextRecording() throws Exception {
+        RecordingStore store = new RecordingStore(directory, QUOTA);
+        record(store, 6000);
+        store.setQuotaBytes(2 * QUOTA);
+        store.createRecording("aac", 5000);
+        assertEquals(11000, store.getUsedBytes());
+    }
+
+    // A finished recording of the given size
+    private static File record(RecordingStore store, int size) throws IOException {
+        File file = store.createRecording("aac", size);
+        write(file, size);
+        store.markComplete(file);
+        return file;
+    }
+
+    // A finished companion of the given size
+    private static File companion(RecordingStore store, File recording, int size) throws IOException {
+        File file = store.createCompanion(recording, "preview.aac", size);
+        write(file, size);
+        store.markComplete(file);
+        return file;
+    }
+
+    private static void write(File file, int size) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[size]);
+        } finally {
+            out.close();
+        }
+    }
+}
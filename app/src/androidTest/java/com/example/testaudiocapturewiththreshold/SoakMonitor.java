@@ -0,0 +1,151 @@
+package com.example.testaudiocapturewiththreshold;
+
+import android.os.Debug;
+import android.util.Log;
+
+import junit.framework.Assert;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Samples process resources during a soak run: heap in use after a full GC, cumulative GC time,
+ * thread count, open file descriptors and the caller's throughput counters. Growth is judged on
+ * the minimum of each window of samples, so GC sawtooth and transient threads do not count; a
+ * resource fails only if every window's minimum is higher than the previous one and the total
+ * rise exceeds its tolerance.
+ */
+public class SoakMonitor {
+    private static final String TAG = SoakMonitor.class.getSimpleName();
+    private static final int WINDOWS = 4;
+
+    public enum Resource {
+        HEAP_BYTES, THREADS, OPEN_FDS
+    }
+
+    /** One row of measurements, -1 where the platform does not expose the value. */
+    public static class Sample {
+        public final long wallMs;
+        public final long heapBytes;
+        public final long gcTimeMs;
+        public final int threads;
+        public final int openFds;
+        public final long audioMs;
+        public final long uploadedBytes;
+
+        Sample(long wallMs, long heapBytes, long gcTimeMs, int threads, int openFds, long audioMs, long uploadedBytes) {
+            this.wallMs = wallMs;
+            this.heapBytes = heapBytes;
+            this.gcTimeMs = gcTimeMs;
+            this.threads = threads;
+            this.openFds = openFds;
+            this.audioMs = audioMs;
+            this.uploadedBytes = uploadedBytes;
+        }
+
+        long get(Resource resource) {
+            switch (resource) {
+                case HEAP_BYTES:
+                    return heapBytes;
+                case THREADS:
+                    return threads;
+                default:
+                    return openFds;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "t=" + wallMs / 1000 + "s heap=" + heapBytes / 1024 + "KB gc=" + gcTimeMs + "ms threads=" + threads
+                    + " fds=" + openFds + " audio=" + audioMs / 1000 + "s uploaded=" + uploadedBytes / 1024 + "KB";
+        }
+    }
+
+    private final List<Sample> samples = new ArrayList<Sample>();
+    private final long startMs = System.currentTimeMillis();
+
+    //-------------< Take a sample, audioMs and uploadedBytes are cumulative totals >-------------
+    public Sample sample(long audioMs, long uploadedBytes) {
+        Runtime runtime = Runtime.getRuntime();
+        // twice, so objects released by finalizers of the first pass are gone too
+        runtime.gc();
+        runtime.runFinalization();
+        runtime.gc();
+        Sample sample = new Sample(System.currentTimeMillis() - startMs, runtime.totalMemory() - runtime.freeMemory(),
+                gcTimeMs(), threadCount(), countEntries("/proc/self/fd"), audioMs, uploadedBytes);
+        if (!samples.isEmpty()) {
+            Sample previous = samples.get(samples.size() - 1);
+            long wall = Math.max(1, sample.wallMs - previous.wallMs);
+            Log.i(TAG, sample + " speed=" + (sample.audioMs - previous.audioMs) / (double) wall + "x upload="
+                    + (sample.uploadedBytes - previous.uploadedBytes) / wall + "KB/s");
+        } else {
+            Log.i(TAG, sample.toString());
+        }
+        samples.add(sample);
+        return sample;
+    }
+
+    public List<Sample> getSamples() {
+        return samples;
+    }
+
+    //-------------< Fail if the resource rose in every window by more than tolerance in total >-
+    public void assertNoMonotonicGrowth(Resource resource, long tolerance) {
+        // the first sample is taken before the pipeline has warmed up
+        List<Sample> steady = samples.subList(Math.min(1, samples.size()), samples.size());
+        if (steady.size() < 2 * WINDOWS || steady.get(0).get(resource) < 0) {
+            Log.w(TAG, resource + ": not enough samples to judge growth");
+            return;
+        }
+        long[] minimum = new long[WINDOWS];
+        for (int w = 0; w < WINDOWS; w++) {
+            minimum[w] = Long.MAX_VALUE;
+            int from = w * steady.size() / WINDOWS, to = (w + 1) * steady.size() / WINDOWS;
+            for (int i = from; i < to; i++) {
+                minimum[w] = Math.min(minimum[w], steady.get(i).get(resource));
+            }
+        }
+        boolean rising = true;
+        for (int w = 1; w < WINDOWS; w++) {
+            rising &= minimum[w] > minimum[w - 1];
+        }
+        long growth = minimum[WINDOWS - 1] - minimum[0];
+        Log.i(TAG, resource + " window minimums " + Arrays.toString(minimum));
+        Assert.assertFalse(resource + " grew monotonically by " + growth + " (window minimums "
+                + Arrays.toString(minimum) + ")", rising && growth > tolerance);
+    }
+
+    //-------------< Audio time processed per wall time over the whole run >--------------------
+    public double overallSpeed() {
+        if (samples.size() < 2) {
+            return 0;
+        }
+        Sample first = samples.get(0), last = samples.get(samples.size() - 1);
+        return (last.audioMs - first.audioMs) / (double) Math.max(1, last.wallMs - first.wallMs);
+    }
+
+    // Debug.getRuntimeStat is API 23, looked up reflectively so this builds against SDK 21
+    private static long gcTimeMs() {
+        try {
+            Method getRuntimeStat = Debug.class.getMethod("getRuntimeStat", String.class);
+            Object value = getRuntimeStat.invoke(null, "art.gc.gc-time");
+            return value == null ? -1 : Long.parseLong((String) value);
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    // Native threads included, falls back to the Java threads the VM knows about
+    private static int threadCount() {
+        int tasks = countEntries("/proc/self/task");
+        return tasks >= 0 ? tasks : Thread.getAllStackTraces().size();
+    }
+
+    private static int countEntries(String directory) {
+        String[] entries = new File(directory).list();
+        return entries == null ? -1 : entries.length;
+    }
+}
@@ -0,0 +1,270 @@
+package com.example.testaudiocapturewiththreshold;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Uploads against loopback stand-ins for the HTTP and FTP servers, plus a loopback benchmark
+ * comparing per-upload setup cost (small files one at a time), small files queued together, and
+ * sustained throughput (one large file).
+ */
+public class UploadTransportTest extends TestCase {
+    private static final String TAG = UploadTransportTest.class.getSimpleName();
+
+    private LocalHttpUploadServer httpServer;
+    private LocalFtpServer ftpServer;
+    private final List<File> files = new ArrayList<File>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        httpServer = new LocalHttpUploadServer();
+        ftpServer = new LocalFtpServer();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        httpServer.close();
+        ftpServer.close();
+        for (File file : files) {
+            file.delete();
+        }
+        super.tearDown();
+    }
+
+    public void testHttpUploadsAreMultiplexed() throws Exception {
+        List<File> uploads = new ArrayList<File>();
+        for (int i = 0; i < 10; i++) {
+            uploads.add(createFile(100000 + i * 7919));
+        }
+        httpServer.setResponseDelayMs(50);  // keep each connection open long enough to overlap
+        HttpUploadTransport transport = new HttpUploadTransport(httpServer.getUrl());
+        try {
+            assertEquals(uploads.size(), uploadAndWait(transport, uploads));
+        } finally {
+            transport.close();
+        }
+        int maxOpen = httpServer.getMaxOpenConnections();
+        assertTrue("uploads did not overlap: " + maxOpen, maxOpen > 1);
+        assertTrue("too many connections: " + maxOpen, maxOpen <= HttpUploadTransport.MAX_CONCURRENT_UPLOADS);
+        for (File file : uploads) {
+            assertTrue(Arrays.equals(readFile(file), httpServer.getUpload(file.getName())));
+        }
+    }
+
+    public void testHttpEmptyFile() throws Exception {
+        File file = createFile(0);
+        HttpUploadTransport transport = new HttpUploadTransport(httpServer.getUrl());
+        try {
+            assertEquals(1, uploadAndWait(transport, Arrays.asList(file)));
+        } finally {
+            transport.close();
+        }
+        assertEquals(0, httpServer.getUpload(file.getName()).length);
+    }
+
+    public void testHttpRefusedUploadFails() throws Exception {
+        httpServer.setResponseStatus(500);
+        HttpUploadTransport transport = new HttpUploadTransport(httpServer.getUrl());
+        try {
+            assertEquals(0, uploadAndWait(transport, Arrays.asList(createFile(1000))));
+        } finally {
+            transport.close();
+        }
+    }
+
+    public void testHttpCorruptUploadIsRetried() throws Exception {
+        File file = createFile(100000);
+        httpServer.corruptNextUploads(HttpUploadTransport.MAX_ATTEMPTS - 1);
+        HttpUploadTransport transport = new HttpUploadTransport(httpServer.getUrl());
+        try {
+            assertEquals(1, uploadAndWait(transport, Arrays.asList(file), checksumOf(file)));
+        } finally {
+            transport.close();
+        }
+        assertEquals(HttpUploadTransport.MAX_ATTEMPTS - 1, httpServer.getChecksumMismatches());
+        assertTrue(Arrays.equals(readFile(file), httpServer.getUpload(file.getName())));
+    }
+
+    public void testHttpPersistentMismatchFails() throws Exception {
+        File file = createFile(100000);
+        HttpUploadTransport transport = new HttpUploadTransport(httpServer.getUrl());
+        try {
+            // as if the file changed on flash after it was written
+            assertEquals(0, uploadAndWait(transport, Arrays.asList(file), checksumOf(file) ^ 1));
+        } finally {
+            transport.close();
+        }
+        assertEquals(HttpUploadTransport.MAX_ATTEMPTS, httpServer.getChecksumMismatches());
+        assertNull(httpServer.getUpload(file.getName()));
+    }
+
+    public void testHttpDroppedConnectionIsRetried() throws Exception {
+        File file = createFile(100000);
+        httpServer.dropNextConnections(HttpUploadTransport.MAX_ATTEMPTS - 1);
+        HttpUploadTransport transport = new HttpUploadTransport(httpServer.getUrl());
+        try {
+            assertEquals(1, uploadAndWait(transport, Arrays.asList(file), checksumOf(file)));
+        } finally {
+            transport.close();
+        }
+        assertEquals(HttpUploadTransport.MAX_ATTEMPTS - 1, httpServer.getDroppedConnections());
+        assertTrue(Arrays.equals(readFile(file), httpServer.getUpload(file.getName())));
+    }
+
+    public void testHttpPersistentDropFails() throws Exception {
+        File file = createFile(1000);
+        httpServer.dropNextConnections(HttpUploadTransport.MAX_ATTEMPTS + 1);
+        HttpUploadTransport transport = new HttpUploadTransport(httpServer.getUrl());
+        try {
+            assertEquals(0, uploadAndWait(transport, Arrays.asList(file)));
+        } finally {
+            transport.close();
+        }
+        assertEquals(HttpUploadTransport.MAX_ATTEMPTS, httpServer.getDroppedConnections());
+    }
+
+    public void testHttpUploadAfterCloseIsReported() throws Exception {
+        List<File> uploads = new ArrayList<File>();
+        for (int i = 0; i < 20; i++) {
+            uploads.add(createFile(1000));
+        }
+        for (int round = 0; round < 20; round++) {
+            final HttpUploadTransport transport = new HttpUploadTransport(httpServer.getUrl());
+            Thread closer = new Thread(new Runnable() {
+                public void run() {
+                    transport.close();
+                }
+            });
+            closer.start();
+            // every callback must run, whether the upload got in before close() or not
+            uploadAndWait(transport, uploads);
+            closer.join();
+        }
+    }
+
+    public void testFtpUpload() throws Exception {
+        File file = createFile(200000);
+        FtpUploadTransport transport = newFtpTransport();
+        try {
+            assertEquals(1, uploadAndWait(transport, Arrays.asList(file)));
+        } finally {
+            transport.close();
+        }
+        assertTrue(Arrays.equals(readFile(file), ftpServer.getUpload(file.getName())));
+    }
+
+    public void testLoopbackBenchmark() throws Exception {
+        List<File> smallFiles = new ArrayList<File>();
+        for (int i = 0; i < 50; i++) {
+            smallFiles.add(createFile(1024));
+        }
+        List<File> largeFile = Arrays.asList(createFile(32 * 1024 * 1024));
+
+        UploadTransport http = new HttpUploadTransport(httpServer.getUrl());
+        UploadTransport ftp = newFtpTransport();
+        try {
+            report("http", http, smallFiles, largeFile);
+            report("ftp", ftp, smallFiles, largeFile);
+        } finally {
+            http.close();
+            ftp.close();
+        }
+    }
+
+    // Setup latency is timed one upload at a time, the HTTP transport would otherwise overlap four
+    // of them while FTP sends one after the other; the batch shows each transport's own concurrency
+    private void report(String name, UploadTransport transport, List<File> smallFiles, List<File> largeFile) throws Exception {
+        long start = System.nanoTime();
+        for (File file : smallFiles) {
+            assertEquals(1, uploadAndWait(transport, Arrays.asList(file)));
+        }
+        long setupNs = (System.nanoTime() - start) / smallFiles.size();
+
+        start = System.nanoTime();
+        assertEquals(smallFiles.size(), uploadAndWait(transport, smallFiles));
+        double batchSeconds = (System.nanoTime() - start) / 1e9;
+
+        start = System.nanoTime();
+        assertEquals(1, uploadAndWait(transport, largeFile));
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double mbPerSecond = largeFile.get(0).length() / (1024.0 * 1024.0) / seconds;
+
+        Log.i(TAG, name + ": " + TimeUnit.NANOSECONDS.toMicros(setupNs) + " us per small upload one at a time, "
+                + String.format("%.0f", smallFiles.size() / batchSeconds) + " small uploads/s queued together, "
+                + String.format("%.1f", mbPerSecond) + " MB/s sustained");
+    }
+
+    private FtpUploadTransport newFtpTransport() {
+        return new FtpUploadTransport(ftpServer.getHost(), ftpServer.getPort(), "user", "password", "/upload/");
+    }
+
+    private static int uploadAndWait(UploadTransport transport, List<File> uploads) throws InterruptedException {
+        return uploadAndWait(transport, uploads, Crc32c.UNKNOWN);
+    }
+
+    private static int uploadAndWait(UploadTransport transport, List<File> uploads, long checksum) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(uploads.size());
+        final AtomicInteger succeeded = new AtomicInteger();
+        for (File file : uploads) {
+            transport.upload(file, checksum, new UploadTransport.Callback() {
+                public void onUploadFinished(File file, boolean success, IOException error) {
+                    if (success) {
+                        succeeded.incrementAndGet();
+                    }
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue("uploads timed out", done.await(120, TimeUnit.SECONDS));
+        return succeeded.get();
+    }
+
+    private File createFile(int size) throws IOException {
+        File file = File.createTempFile("upload", ".aac");
+        files.add(file);
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static long checksumOf(File file) throws IOException {
+        byte[] data = readFile(file);
+        Crc32c crc = new Crc32c();
+        crc.update(data, 0, data.length);
+        return crc.getValue();
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                offset += in.read(data, offset, data.length - offset);
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+}
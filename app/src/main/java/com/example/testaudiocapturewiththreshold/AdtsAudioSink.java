@@ -0,0 +1,259 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////
+// AdtsAudioSink.java - Crash-safe streaming EncodedAudioSink writing raw ADTS AAC frames         //
+// Ver 1.0                                                                                        //
+// Language:    Java                                                                              //
+// platform:    Android                                                                           //
+// Application: Audio Capture Application                                                         //
+////////////////////////////////////////////////////////////////////////////////////////////////////
+/*
+* Class Operations:
+* -------------------
+* Every encoded AAC access unit coming out of AudioEncoder.drainEncoder is prefixed with a 7 byte
+* ADTS header and appended straight to the output file. ADTS frames are self-delimiting, so the
+* file is playable at any moment: a process that is killed mid-session leaves a valid .aac file
+* up to the last written frame, and other tools can tail or upload the file while it grows.
+* Writes go through the FileChannel without user-space buffering; every syncIntervalUs of audio
+* the channel is forced to storage so the recording also survives a power loss up to that point.
+*
+* Optionally the file is preallocated (posix_fallocate, Android 5.0+) to reduce fragmentation and
+* write stalls; stop() truncates it back to the bytes actually written. After a crash the file
+* may end in preallocated zeros, recoverLength() trims it back to the last complete ADTS frame.
+*
+* Every header and frame is also fed through a Crc32c on its way to the file, getChecksum()
+* returns the checksum of the whole file once stop() has completed, without reading it back.
+*
+* Required Files:
+* ---------------
+*   - EncodedAudioSink.java, Crc32c.java
+*
+*/
+
+package com.example.testaudiocapturewiththreshold;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Class body
+public class AdtsAudioSink implements EncodedAudioSink {
+    private static final String TAG = AdtsAudioSink.class.getSimpleName();
+
+    public static final long DEFAULT_SYNC_INTERVAL_US = 2000000L; // 2 sec of audio
+    private static final int ADTS_HEADER_LENGTH = 7;
+    private static final int AAC_PROFILE_LC = 2;
+    private static final int[] SAMPLING_FREQUENCIES = {
+            96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350
+    };
+
+    private final File mFile;
+    private final long mSyncIntervalUs;
+    private FileOutputStream mOutputStream;
+    private FileChannel mChannel;
+    private final ByteBuffer mHeader = ByteBuffer.allocate(ADTS_HEADER_LENGTH);
+    private final Crc32c mCrc = new Crc32c();
+
+    // Stream configuration, taken from the encoder output format
+    private int mFrequencyIndex = -1;
+    private int mChannelCount = 1;
+
+    // Output state
+    private long mBytesWritten = 0;
+    private long mLastSyncUs = -1;
+    private int mSyncCount = 0;
+    private boolean mStarted = false;
+    private boolean mPreallocated = false;
+    private boolean mWriteFailed = false;
+    private volatile boolean mComplete = false;  // stopped after writing everything, checksum is final
+
+    //-------------< Constructors >-------------------------------------------------------------
+    public AdtsAudioSink(File file) throws IOException {
+        this(file, DEFAULT_SYNC_INTERVAL_US, 0);
+    }
+
+    public AdtsAudioSink(File file, long syncIntervalUs, long preallocateBytes) throws IOException {
+        this.mFile = file;
+        this.mSyncIntervalUs = syncIntervalUs;
+        mOutputStream = new FileOutputStream(file);
+        mChannel = mOutputStream.getChannel();
+        if (preallocateBytes > 0) {
+            preallocate(preallocateBytes);
+        }
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        if (mStarted) {
+            throw new IllegalStateException("addTrack after start");
+        }
+        int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        mChannelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        mFrequencyIndex = frequencyIndex(sampleRate);
+        if (mFrequencyIndex < 0) {
+            throw new IllegalArgumentException("sample rate not representable in ADTS: " + sampleRate);
+        }
+        return 0; // ADTS carries a single track
+    }
+
+    @Override
+    public void start() {
+        if (mFrequencyIndex < 0) {
+            throw new IllegalStateException("start before addTrack");
+        }
+        mStarted = true;
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) throws IOException {
+        if (!mStarted) {
+            throw new IllegalStateException("sink hasn't started");
+        }
+        writeHeader(bufferInfo.size + ADTS_HEADER_LENGTH);
+        mCrc.update(mHeader);
+        mCrc.update(encodedData);
+        try {
+            writeFully(mHeader);
+            writeFully(encodedData);
+        } catch (IOException e) {
+            mWriteFailed = true;  // the checksum now covers bytes the file may not have
+            throw e;
+        }
+        mBytesWritten += bufferInfo.size + ADTS_HEADER_LENGTH;
+
+        // periodic durable flush, driven by the audio timeline rather than the wall clock
+        if (mLastSyncUs < 0 || bufferInfo.presentationTimeUs - mLastSyncUs >= mSyncIntervalUs) {
+            mChannel.force(false);
+            mLastSyncUs = bufferInfo.presentationTimeUs;
+            mSyncCount++;
+        }
+    }
+
+    @Override
+    public void stop() throws IOException {
+        if (mChannel != null && mChannel.isOpen()) {
+            if (mPreallocated) {
+                mChannel.truncate(mBytesWritten);
+            }
+            mChannel.force(true);
+            mComplete = !mWriteFailed;
+        }
+        mStarted = false;
+        Log.i(TAG, "closed " + mFile.getName() + " (" + mBytesWritten + " bytes)");
+    }
+
+    @Override
+    public void release() {
+        try {
+            if (mOutputStream != null) {
+                mOutputStream.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        mOutputStream = null;
+        mChannel = null;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    // Number of periodic durable flushes so far, not counting the one in stop()
+    int getSyncCount() {
+        return mSyncCount;
+    }
+
+    // CRC-32C of the file, Crc32c.UNKNOWN if the sink was not stopped cleanly
+    public long getChecksum() {
+        return mComplete ? mCrc.getValue() : Crc32c.UNKNOWN;
+    }
+
+    //-------------< Reserve file space up front, where the platform supports it >-------------
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void preallocate(long bytes) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+        try {
+            Os.posix_fallocate(mOutputStream.getFD(), 0, bytes);
+            mPreallocated = true;
+        } catch (ErrnoException e) {
+            Log.w(TAG, "posix_fallocate failed, continuing without preallocation", e);
+        } catch (IOException e) {
+            Log.w(TAG, "posix_fallocate failed, continuing without preallocation", e);
+        }
+    }
+
+    //-------------< Trim a crashed recording back to its last complete ADTS frame >-----------
+    public static long recoverLength(File file) throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long length = raf.length();
+            long position = 0;
+            byte[] header = new byte[ADTS_HEADER_LENGTH];
+            while (position + ADTS_HEADER_LENGTH <= length) {
+                raf.seek(position);
+                raf.readFully(header);
+                if ((header[0] & 0xFF) != 0xFF || (header[1] & 0xF6) != 0xF0) {
+                    break; // no sync word, e.g. preallocated zeros
+                }
+                int frameLength = ((header[3] & 0x03) << 11) | ((header[4] & 0xFF) << 3) | ((header[5] & 0xE0) >> 5);
+                if (frameLength < ADTS_HEADER_LENGTH || position + frameLength > length) {
+                    break; // torn frame
+                }
+                position += frameLength;
+            }
+            if (position < length) {
+                raf.setLength(position);
+            }
+            return position;
+        } finally {
+            raf.close();
+        }
+    }
+
+    //-------------< Fill mHeader with the ADTS header for a frame of frameLength bytes >-------
+    private void writeHeader(int frameLength) {
+        mHeader.clear();
+        mHeader.put((byte) 0xFF);
+        mHeader.put((byte) 0xF1); // MPEG-4, layer 0, no CRC
+        mHeader.put((byte) (((AAC_PROFILE_LC - 1) << 6) | (mFrequencyIndex << 2) | (mChannelCount >> 2)));
+        mHeader.put((byte) (((mChannelCount & 3) << 6) | (frameLength >> 11)));
+        mHeader.put((byte) ((frameLength & 0x7FF) >> 3));
+        mHeader.put((byte) (((frameLength & 7) << 5) | 0x1F));
+        mHeader.put((byte) 0xFC);
+        mHeader.flip();
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            mChannel.write(buffer);
+        }
+    }
+
+    static int frequencyIndex(int sampleRate) {
+        for (int i = 0; i < SAMPLING_FREQUENCIES.length; i++) {
+            if (SAMPLING_FREQUENCIES[i] == sampleRate) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -19,10 +19,14 @@
 * This class creates a MediaCodec instance, with the encoding type specified as "audio/mp4a-latm".
 * The MediaCodec encodes raw code from the audio recording into this format. It also uses a
 * MediaMuxer instance to stream the encoded data into audible files with the output format
-* specified in the MediaMuxer's creation.
+* specified in the MediaMuxer's creation. Any other EncodedAudioSink (e.g. the crash-safe
+* AdtsAudioSink) can be used in place of the MediaMuxer. Sample rate and bit rate are chosen per
+* instance, so several encoders can record the same frames at different qualities
+* (FanOutFrameConsumer).
 *
 * Required Files:
 * ---------------
+*   - EncodedAudioSink.java, MuxerAudioSink.java, AdtsAudioSink.java
 *
 */
 
@@ -33,34 +37,45 @@ import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
+import android.os.Debug;
 import android.util.Log;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 // Class body
-public class AudioEncoder {
+public class AudioEncoder implements AudioFrameConsumer {
     private static final String TAG = AudioEncoder.class.getSimpleName();
     private static final boolean VERBOSE = false;
 
     // AudioEncoder declaration and configuration
     private MediaCodec mAudioEncoder;
     private static final String AUDIO_MIME_TYPE = "audio/mp4a-latm";
+    public static final int DEFAULT_SAMPLE_RATE = 44100;
+    public static final int DEFAULT_BIT_RATE = 128000;
+    private final int mSampleRate;
+    private final int mBitRate;
     private MediaFormat audioFormat;
     private MediaCodec.BufferInfo mAudioBufferInfo;
     private ExecutorService encodingService = Executors.newSingleThreadExecutor(); // re-use encodingServiceI
     private TrackIndex mAudioTrackIndex = new TrackIndex();
-    int encodingServiceQueueLength = 0;
-
-    // MediaMuxer declaration and configuration
-    private MediaMuxer mMuxer;
+    final AtomicInteger encodingServiceQueueLength = new AtomicInteger(); // offered on the capture thread, run on encodingService
+    private volatile long encodingCpuTimeNs = 0; // written by encodingService only
+    private volatile boolean cpuTimeUnavailable = false; // Debug.threadCpuTimeNanos is not supported
+    private static final int CPU_SAMPLE_TASKS = 43; // ~1 s of 1024 sample frames at 44.1 kHz
+    private int tasksRun = 0; // encodingService only
+
+    // MediaMuxer (or other sink) declaration and configuration
+    private EncodedAudioSink mMuxer;
     private boolean mMuxerStarted;
 
     // Audio state
-    private static long audioBytesReceived = 0;
-    private static int numTracksAdded = 0;
+    private long audioBytesReceived = 0;
+    private int numTracksAdded = 0;
     boolean eosReceived = false;
     boolean eosSentToAudioEncoder = false;
     boolean stopReceived = false;
@@ -71,6 +86,7 @@ public class AudioEncoder {
 
     // Muxer state
     private static final int TOTAL_NUM_TRACKS = 1;
+    private static final long EOS_DRAIN_TIMEOUT_NS = 2000000000L; // give up waiting for the EOS buffer after 2 s
 
     Context c;
 
@@ -79,14 +95,29 @@ public class AudioEncoder {
 
     //-------------< Constructor >--------------------------------------------------------------
     public AudioEncoder(Context c, MediaMuxer muxer) {
+        this(c, new MuxerAudioSink(muxer));
+    }
+
+    public AudioEncoder(Context c, EncodedAudioSink sink) {
+        this(c, sink, DEFAULT_SAMPLE_RATE, DEFAULT_BIT_RATE);
+    }
+
+    public AudioEncoder(Context c, EncodedAudioSink sink, int sampleRate, int bitRate) {
         this.c = c;
-        this.mMuxer = muxer;
+        this.mMuxer = sink;
+        this.mSampleRate = sampleRate;
+        this.mBitRate = bitRate;
         prepare();
     }
 
     //-------------< Set private MediaMuxer >---------------------------------------------------
     public void setMediaMuxer(MediaMuxer muxer){
-        this.mMuxer = muxer;
+        this.mMuxer = new MuxerAudioSink(muxer);
+    }
+
+    //-------------< Set private EncodedAudioSink >---------------------------------------------
+    public void setSink(EncodedAudioSink sink){
+        this.mMuxer = sink;
     }
 
     //-------------< Configure and prepare the AudioEncoder and set the Audio state >-----------
@@ -103,9 +134,9 @@ public class AudioEncoder {
         audioFormat = new MediaFormat();
         audioFormat.setString(MediaFormat.KEY_MIME, AUDIO_MIME_TYPE);
         audioFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
-        audioFormat.setInteger(MediaFormat.KEY_SAMPLE_RATE, 44100);
+        audioFormat.setInteger(MediaFormat.KEY_SAMPLE_RATE, mSampleRate);
         audioFormat.setInteger(MediaFormat.KEY_CHANNEL_COUNT, 1);
-        audioFormat.setInteger(MediaFormat.KEY_BIT_RATE, 128000);
+        audioFormat.setInteger(MediaFormat.KEY_BIT_RATE, mBitRate);
         audioFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, 16384);
         try{
             mAudioEncoder = MediaCodec.createEncoderByType(AUDIO_MIME_TYPE);
@@ -119,56 +150,95 @@ public class AudioEncoder {
     // Stop the encodingService
     public void stop() {
         if (!encodingService.isShutdown()){
+            encodingServiceQueueLength.incrementAndGet();
             encodingService.submit(new EncoderTask(this, EncoderTaskType.FINALIZE_ENCODER));
             //Log.w("AudioEncoder", "submitted an EncoderTask with type FINALIZE_ENCODER");
         }
     }
 
+    // Block until the FINALIZE_ENCODER task has closed the output, returns false on timeout
+    public boolean waitForStop(long timeoutMs) throws InterruptedException {
+        return encodingService.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    // Tasks submitted to encodingService that have not run yet
+    public int getQueuedFrames() {
+        return encodingServiceQueueLength.get();
+    }
+
+    // CPU time of the encodingService thread, updated every CPU_SAMPLE_TASKS tasks, -1 if the platform cannot tell
+    public long getCpuTimeNs() {
+        return cpuTimeUnavailable ? -1 : encodingCpuTimeNs;
+    }
+
     // Called from encodingService
     public void _stop() {
         Log.w(TAG, "_stop()");
         stopReceived = true;
         eosReceived = true;
         logStatistics();
-        //the following code copied from _offerAudioEncoder(), because they were not called inside it, _stop() was always called only after
-        //the last time of execution of _offerAudioEncoder()
-        closeEncoderAndMuxer(mAudioEncoder, mAudioBufferInfo, mAudioTrackIndex); // always called after video, so safe to close muxer
-        eosSentToAudioEncoder = true;
-        if (stopReceived) {
+        try {
+            queueEndOfStream(mAudioEncoder);
+            //the following code copied from _offerAudioEncoder(), because they were not called inside it, _stop() was always called only after
+            //the last time of execution of _offerAudioEncoder()
+            closeEncoderAndMuxer(mAudioEncoder, mAudioBufferInfo, mAudioTrackIndex); // always called after video, so safe to close muxer
+            eosSentToAudioEncoder = true;
+        } finally {
+            // the executor thread must go away even if closing failed, otherwise every encoder leaks one
             Log.i(TAG, "Stopping Encoding Service");
             encodingService.shutdown();
         }
     }
 
+    // Queue an empty input buffer flagged END_OF_STREAM so the final drain sees the end of the output
+    private void queueEndOfStream(MediaCodec encoder) {
+        try {
+            int inputBufferIndex = encoder.dequeueInputBuffer(EOS_DRAIN_TIMEOUT_NS / 1000);
+            if (inputBufferIndex >= 0) {
+                encoder.queueInputBuffer(inputBufferIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            } else {
+                Log.w(TAG, "no input buffer for END_OF_STREAM");
+            }
+        } catch (IllegalStateException e) {
+            e.printStackTrace();
+        }
+    }
+
     //-------------< Close the AudioEncoder and MediaMuxer >-------------------------------------------------
     public void closeEncoderAndMuxer(MediaCodec encoder, MediaCodec.BufferInfo bufferInfo, TrackIndex trackIndex) {
         Log.w(TAG, "CloseEncoderAndMuxer()");
-        drainEncoder(encoder, bufferInfo, trackIndex, true);
         try {
+            drainEncoder(encoder, bufferInfo, trackIndex, true);
             encoder.stop();
-            encoder.release();
-            encoder = null;
             closeMuxer();
             Log.w(TAG, "MediaMuxer has been closed");
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            // release the codec and the sink's file descriptor even when draining or stopping failed
+            encoder.release();
+            if (mMuxer != null) {
+                mMuxer.release();
+                mMuxer = null;
+                mMuxerStarted = false;
+            }
         }
     }
 
     //-------------< Close the AudioEncoder only >------------------------------------------------------------
     public void closeEncoder(MediaCodec encoder, MediaCodec.BufferInfo bufferInfo, TrackIndex trackIndex) {
-        drainEncoder(encoder, bufferInfo, trackIndex, true);
         try {
+            drainEncoder(encoder, bufferInfo, trackIndex, true);
             encoder.stop();
-            encoder.release();
-            encoder = null;
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            encoder.release();
         }
     }
 
     //-------------< Close the MediaMuxer only >------------------------------------------------------------
-    public void closeMuxer() {
+    public void closeMuxer() throws IOException {
         Log.w(TAG, "Inside closeMuxer()");
         mMuxer.stop();
         mMuxer.release();
@@ -182,7 +252,7 @@ public class AudioEncoder {
             //long thisFrameTime = (presentationTimeNs == 0) ? System.nanoTime() : presentationTimeNs;
             encodingService.submit(new EncoderTask(this, input, presentationTimeStampNs));
             // Log.w(TAG, "submitted a new EncoderTask");
-            encodingServiceQueueLength++;
+            encodingServiceQueueLength.incrementAndGet();
         }
         else Log.w(TAG, "encodingService is already shut down");
     }
@@ -252,6 +322,7 @@ public class AudioEncoder {
      */
     private void drainEncoder(MediaCodec encoder, MediaCodec.BufferInfo bufferInfo, TrackIndex trackIndex, boolean endOfStream) {
         final int TIMEOUT_USEC = 100;
+        final long eosDeadline = System.nanoTime() + EOS_DRAIN_TIMEOUT_NS;
         Log.d(TAG, "drainEncoder (endOfStream:" + endOfStream + ")");
         ByteBuffer[] encoderOutputBuffers = encoder.getOutputBuffers();
         while (true) {
@@ -262,6 +333,9 @@ public class AudioEncoder {
                 if (!endOfStream) {
                     Log.w(TAG, "Break by !endOfStream in drainEncoder");
                     break;      // out of while
+                } else if (System.nanoTime() - eosDeadline > 0) {
+                    Log.w(TAG, "END_OF_STREAM not seen within " + EOS_DRAIN_TIMEOUT_NS / 1000000 + " ms, stop draining");
+                    break;      // never pin the encoding thread
                 } else {
                     if (VERBOSE) Log.d(TAG, "no output available, spinning to await EOS");
                 }
@@ -308,10 +382,14 @@ public class AudioEncoder {
                     // adjust the ByteBuffer values to match BufferInfo (not needed?)
                     encodedData.position(bufferInfo.offset);
                     encodedData.limit(bufferInfo.offset + bufferInfo.size);
-                    mMuxer.writeSampleData(trackIndex.index, encodedData, bufferInfo);
+                    try {
+                        mMuxer.writeSampleData(trackIndex.index, encodedData, bufferInfo);
+                    } catch (IOException ioe) {
+                        throw new RuntimeException("writing encoded data failed", ioe);
+                    }
                 }
                 encoder.releaseOutputBuffer(encoderStatus, false);
-                if(endOfStream){
+                if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
                     Log.w(TAG, "end of stream reached");
                     break;
                 }
@@ -320,8 +398,18 @@ public class AudioEncoder {
         long endTime = System.nanoTime();
     }
 
+    public int getBitRate() {
+        return mBitRate;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
     private void logStatistics() {
-        Log.i(TAG + "-Stats", "audio frames input: " + totalInputAudioFrameCount + " output: " + totalOutputAudioFrameCount);
+        Log.i(TAG + "-Stats", mBitRate / 1000 + " kbps audio frames input: " + totalInputAudioFrameCount + " output: " + totalOutputAudioFrameCount
+                + " cpu/frame: " + (cpuTimeUnavailable ? "n/a" : (totalInputAudioFrameCount > 0
+                ? encodingCpuTimeNs / totalInputAudioFrameCount / 1000 : 0) + " us"));
     }
 
     enum EncoderTaskType {
@@ -419,7 +507,17 @@ public class AudioEncoder {
                 }
                 // prevent multiple execution of same task
                 is_initialized = false;
-                encodingServiceQueueLength -= 1;
+                // encodingService's thread runs nothing but this encoder, so its CPU time is the
+                // encoder's; read it every CPU_SAMPLE_TASKS tasks rather than around each frame
+                if (++tasksRun % CPU_SAMPLE_TASKS == 0 || type == EncoderTaskType.FINALIZE_ENCODER) {
+                    long cpuNs = Debug.threadCpuTimeNanos();
+                    if (cpuNs >= 0) {
+                        encodingCpuTimeNs = cpuNs;
+                    } else {
+                        cpuTimeUnavailable = true;
+                    }
+                }
+                encodingServiceQueueLength.decrementAndGet();
                 //Log.i(TAG, "EncodingService Queue length: " + encodingServiceQueueLength);
             } else {
                 Log.e(TAG, "run() called but EncoderTask not initialized");
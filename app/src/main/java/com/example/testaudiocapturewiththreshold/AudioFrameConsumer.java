@@ -0,0 +1,41 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////
+// AudioFrameConsumer.java - Receiver of the PCM frames selected by the capture session           //
+// Ver 1.0                                                                                        //
+// Language:    Java                                                                              //
+// platform:    Android                                                                           //
+// Application: Audio Capture Application                                                         //
+////////////////////////////////////////////////////////////////////////////////////////////////////
+/*
+* Interface Operations:
+* -------------------
+* Implemented by AudioEncoder. CaptureSession only talks to this interface, so a session can be
+* replayed against any consumer (e.g. one that records the frames in a test).
+* Implementations must treat the frame array as read-only, FanOutFrameConsumer passes the same
+* array to several consumers. Backlog and CPU time are read by the OverloadController from the
+* capture thread.
+*
+* Required Files:
+* ---------------
+*
+*/
+
+package com.example.testaudiocapturewiththreshold;
+
+// Interface body
+public interface AudioFrameConsumer {
+
+    // Queue one frame of 16 bit little-endian PCM, the array must not be modified afterwards
+    void offerAudioEncoder(byte[] input, long presentationTimeStampNs);
+
+    // Finish the output once all queued frames have been handled
+    void stop();
+
+    // Block until stop() has completed, returns false on timeout
+    boolean waitForStop(long timeoutMs) throws InterruptedException;
+
+    // Frames offered but not handled yet, the encoder's backlog
+    int getQueuedFrames();
+
+    // CPU time spent handling frames so far, may trail by about a second, -1 if the platform cannot tell
+    long getCpuTimeNs();
+}
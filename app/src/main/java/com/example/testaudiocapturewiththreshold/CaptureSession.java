@@ -0,0 +1,361 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////
+// CaptureSession.java - Per-frame voice detection and pause handling of one recording            //
+// Ver 1.0                                                                                        //
+// Language:    Java                                                                              //
+// platform:    Android                                                                           //
+// Application: Audio Capture Application                                                         //
+// Source:      capture loop of TestAudioCaptureWithThreshold.java, after Gaucho,                 //
+//              Stack Overflow, questions/19145213/android-audio-capture-silence-detection        //
+////////////////////////////////////////////////////////////////////////////////////////////////////
+/*
+* Class Operations:
+* -------------------
+* The capture loop reads a frame from AudioRecord and hands it to processFrame(). The session
+* decides whether the frame is voice, a natural pause that is still recorded, or a longer pause
+* that is dropped, and ends the recording once the allowable pause length has been exceeded.
+* The encoder is created lazily on the first frame with voice.
+*
+* Nothing here reads the system time. The pause clock advances by every sample that was read,
+* so silence lengths are measured in audio time. The timeline clock advances only by the samples
+* that are handed to the encoder, so presentation timestamps are gapless (dropped pauses simply
+* do not exist on the timeline) and a replay of the same input produces the same frames and
+* timestamps whatever the replay speed.
+*
+* The capture loop hands each frame over in a direct ByteBuffer, as AudioRecord.read(ByteBuffer,
+* int) filled it. Detection, the level meter and packing for the encoder run on that buffer with
+* the PcmKernels (native when libndk1 is loaded); the samples are only copied into a short[] when
+* a frame is decimated or added to the peak pyramid, never for silence that is dropped. Replays
+* and tests can hand in short[] frames instead, which take the Java kernels.
+*
+* If a PeakPyramid is set, every frame handed to the encoder is also added to it, and the end of
+* the segment writes the waveform sidecar. A pyramid belongs to one segment: the EncoderFactory
+* sets the next one when it creates the segment's encoder. A failing pyramid is dropped, it
+* never stops the recording.
+* If a LevelMeter is set, each frame's level and the decision taken for it are published to it;
+* the meter only measures frames while its reader is polling.
+*
+* If an OverloadController is set, the encoders' backlog is reported before every frame; it
+* includes what stopped encoders of earlier segments still have to drain. The CPU time of the
+* encoder and of the capture thread is sampled only while an encoder runs and only when the
+* controller asks for it, about once a second, so silence costs no system call. While the
+* controller sheds, frames that would go to the encoder are dropped and counted as planned loss,
+* the timeline and the peak pyramid skip them. A profile change is applied at the next segment
+* boundary, a pause that is dropped anyway: the current encoder is stopped (it finishes its queue
+* in the background) and the next voice frame asks the EncoderFactory for a new one, which reads
+* the profile from the controller. Under HALF_SAMPLE_RATE and below, frames are decimated 2:1
+* before encoding; under PAUSES_DROPPED natural pauses are not recorded.
+*
+* Required Files:
+* ---------------
+*   - CascadeDetector.java, MediaClock.java, AudioFrameConsumer.java, PeakPyramid.java,
+*     LevelMeter.java, OverloadController.java, QualityProfile.java, PcmKernels.java
+*
+*/
+
+package com.example.testaudiocapturewiththreshold;
+
+import android.os.Debug;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Class body
+public class CaptureSession {
+    private static final String TAG = CaptureSession.class.getSimpleName();
+
+    public interface EncoderFactory {
+        // Called when a segment starts, may set the segment's PeakPyramid on the session
+        AudioFrameConsumer createEncoder(CaptureSession session) throws IOException;
+    }
+
+    private final CascadeDetector mDetector;
+    private final MediaClock mPauseClock;
+    private final MediaClock mTimelineClock;
+    private final long mNaturalPauseLength;
+    private final long mAllowablePauseLength;
+    private final EncoderFactory mEncoderFactory;
+    private AudioFrameConsumer mEncoder;
+    private PeakPyramid mPeakPyramid;
+    private LevelMeter mLevelMeter;
+    private OverloadController mOverloadController;
+    private final List<AudioFrameConsumer> mRetiredEncoders = new ArrayList<AudioFrameConsumer>(); // still draining
+
+    // The frame being handled: the capture loop's direct PCM buffer, or samples handed in as short[]
+    private ByteBuffer mPcm;
+    private ShortBuffer mPcmSamples;         // native order view of mPcm
+    private short[] mSamples;
+    private boolean mSamplesLoaded;          // mSamples holds the current frame
+    private short[] mScratch = new short[0]; // copy of a direct frame, when short[] is needed
+
+    // Pause state
+    private boolean isCountingTime = false; // used to count how much continual silence time has passed
+    private long starttime = 0, elapsedtime = 0;
+    private long lastLoggedSilenceSeconds = -1;
+
+    //-------------< Constructor >--------------------------------------------------------------
+    public CaptureSession(CascadeDetector detector, MediaClock pauseClock, MediaClock timelineClock,
+                          long naturalPauseLengthNs, long allowablePauseLengthNs, EncoderFactory encoderFactory) {
+        this.mDetector = detector;
+        this.mPauseClock = pauseClock;
+        this.mTimelineClock = timelineClock;
+        this.mNaturalPauseLength = naturalPauseLengthNs;
+        this.mAllowablePauseLength = allowablePauseLengthNs;
+        this.mEncoderFactory = encoderFactory;
+    }
+
+    // Optional waveform overview of the current segment, or of the next one if none is recording
+    public void setPeakPyramid(PeakPyramid peakPyramid) {
+        this.mPeakPyramid = peakPyramid;
+    }
+
+    // Optional live display of the input level and detector state
+    public void setLevelMeter(LevelMeter levelMeter) {
+        this.mLevelMeter = levelMeter;
+    }
+
+    // Optional adaptive quality, the EncoderFactory must create encoders for its current profile
+    public void setOverloadController(OverloadController overloadController) {
+        this.mOverloadController = overloadController;
+    }
+
+    //-------------< Handle one frame, returns false once the allowable pause is exceeded >------
+    public boolean processFrame(short[] buffer, int count) throws IOException {
+        mPcm = null;
+        mSamples = buffer;
+        mSamplesLoaded = true;
+        return process(count);
+    }
+
+    // pcm holds count 16 bit samples in native byte order from its start, position and limit are ignored
+    public boolean processFrame(ByteBuffer pcm, int count) throws IOException {
+        if (pcm != mPcm) {
+            ByteBuffer view = pcm.duplicate();
+            view.clear();
+            mPcmSamples = view.order(ByteOrder.nativeOrder()).asShortBuffer();
+            mPcm = pcm;
+        }
+        mSamplesLoaded = false;
+        return process(count);
+    }
+
+    // The current frame as short[], copied out of the direct buffer on first use
+    private short[] samples(int count) {
+        if (!mSamplesLoaded) {
+            if (mScratch.length < count) {
+                mScratch = new short[count];
+            }
+            mPcmSamples.clear();
+            mPcmSamples.get(mScratch, 0, count);
+            mSamples = mScratch;
+            mSamplesLoaded = true;
+        }
+        return mSamples;
+    }
+
+    private boolean process(int count) throws IOException {
+        if (count <= 0) {
+            return true;
+        }
+        if (mOverloadController != null) {
+            AudioFrameConsumer encoder = mEncoder;
+            // stopped encoders still drain on their own threads, their backlog delays the output as well
+            int queuedFrames = encoder != null ? encoder.getQueuedFrames() : 0;
+            for (int i = 0; i < mRetiredEncoders.size(); i++) {
+                queuedFrames += mRetiredEncoders.get(i).getQueuedFrames();
+            }
+            mOverloadController.onFrame(count, queuedFrames);
+            if (encoder != null && mOverloadController.isCpuSampleDue()) {
+                mOverloadController.onCpuSample(encoder.getCpuTimeNs(), Debug.threadCpuTimeNanos());
+            }
+        }
+        return handleFrame(count);
+    }
+
+    private boolean handleFrame(int count) throws IOException {
+        mPauseClock.advance(count);
+
+        //check signal
+        //put a threshold
+        int foundPeak = mSamplesLoaded ? mDetector.search(mSamples, count) : mDetector.search(mPcm, count);
+        if (foundPeak > -1) {
+            isCountingTime = false;
+            elapsedtime = 0;
+            lastLoggedSilenceSeconds = -1;
+            //if the output file stream doesn't exist, create it, else ignore this step
+            if (mEncoder == null) {
+                mEncoder = mEncoderFactory.createEncoder(this);
+            }
+            //found signal
+            //record signal
+            offer(count);
+            publishLevel(count, LevelMeter.STATE_VOICE);
+        } else {
+            //count the time
+            //don't save signal
+            if (isCountingTime == false) {
+                starttime = mPauseClock.nowNs();
+            }
+            isCountingTime = true;
+            elapsedtime = mPauseClock.nowNs() - starttime;
+
+            long silenceSeconds = TimeUnit.SECONDS.convert(elapsedtime, TimeUnit.NANOSECONDS);
+            if (silenceSeconds != lastLoggedSilenceSeconds) {  // once per second, not per frame
+                Log.w(TAG, "no voice detected for " + silenceSeconds + " seconds");
+                lastLoggedSilenceSeconds = silenceSeconds;
+            }
+
+            //if the file output stream has been created and if the silent time is no more than the natural pause, still record the blank
+            if (mEncoder != null && elapsedtime <= mNaturalPauseLength) {
+                if (profile().recordsPauses()) {
+                    offer(count);
+                    publishLevel(count, LevelMeter.STATE_PAUSE_RECORDED);
+                } else {
+                    publishLevel(count, LevelMeter.STATE_SILENCE);
+                }
+                return true;
+            }
+            publishLevel(count, LevelMeter.STATE_SILENCE);
+            //nothing is recorded in this pause, a pending profile change can start a new segment here
+            if (mEncoder != null && mOverloadController != null && mOverloadController.hasPendingChange()) {
+                endSegment();
+            }
+            //if elapsed time is longer than the allowable pause
+            if (elapsedtime > mAllowablePauseLength) return false;
+        }
+        return true;
+    }
+
+    private void publishLevel(int count, int state) {
+        if (mLevelMeter == null) {
+            return;
+        }
+        if (mSamplesLoaded) {
+            mLevelMeter.publish(mSamples, count, state);
+        } else {
+            mLevelMeter.publish(mPcm, count, state);
+        }
+    }
+
+    private QualityProfile profile() {
+        return mOverloadController != null ? mOverloadController.getProfile() : QualityProfile.FULL;
+    }
+
+    private void offer(int count) {
+        if (mOverloadController != null && mOverloadController.isShedding()) {
+            mOverloadController.onFrameShed();  // the encoder is too far behind, this frame is lost
+            return;
+        }
+        long presentationTimeNs = mTimelineClock.nowNs();
+        mTimelineClock.advance(count);
+        int decimation = profile().getDecimation();
+        byte[] frame;
+        if (decimation > 1) {
+            frame = DecimateToByte(samples(count), count, decimation);
+        } else if (mSamplesLoaded) {
+            frame = ShortToByte(mSamples, count);
+        } else {
+            frame = new byte[count * 2];
+            PcmKernels.packLittleEndian(mPcm, count, frame);
+        }
+        mEncoder.offerAudioEncoder(frame, presentationTimeNs);
+        if (mPeakPyramid != null) {
+            try {
+                mPeakPyramid.add(samples(count), count);
+            } catch (IOException e) {
+                Log.e(TAG, "peak pyramid disabled: " + e.getMessage());
+                mPeakPyramid.abort();
+                mPeakPyramid = null;
+            }
+        }
+    }
+
+    //-------------< Let the current encoder drain in the background, switch the profile >------
+    private void endSegment() {
+        mEncoder.stop();
+        mRetiredEncoders.add(mEncoder);
+        mEncoder = null;
+        finishPeakPyramid();
+        mOverloadController.applyPendingChange();
+        Iterator<AudioFrameConsumer> it = mRetiredEncoders.iterator();
+        while (it.hasNext()) {
+            try {
+                if (it.next().waitForStop(0)) {
+                    it.remove();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    //-------------< Stop the encoders, if any were created, wait for their output, write the peaks >
+    // Returns false if an encoder did not stop in time, its file may still be incomplete
+    public boolean finish(long timeoutMs) throws InterruptedException {
+        if (mEncoder != null) {
+            mEncoder.stop();
+            mRetiredEncoders.add(mEncoder);
+            mEncoder = null;
+        }
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        boolean stopped = true;
+        for (AudioFrameConsumer encoder : mRetiredEncoders) {
+            if (!encoder.waitForStop(Math.max(0, deadline - System.currentTimeMillis()))) {
+                Log.w(TAG, "encoder did not stop within " + timeoutMs + " ms");
+                stopped = false;
+            }
+        }
+        mRetiredEncoders.clear();
+        if (mOverloadController != null) {
+            Log.i(TAG + "-Stats", "overload " + mOverloadController.statistics());
+        }
+        finishPeakPyramid();
+        Log.i(TAG + "-Stats", "detector " + mDetector.statistics());
+        return stopped;
+    }
+
+    private void finishPeakPyramid() {
+        if (mPeakPyramid != null) {
+            try {
+                mPeakPyramid.finish();
+            } catch (IOException e) {
+                Log.e(TAG, "peak pyramid not written: " + e.getMessage());
+            }
+            mPeakPyramid = null;
+        }
+    }
+
+    public boolean hasEncoder() {
+        return mEncoder != null;
+    }
+
+    // Average every factor samples into one (a boxcar low-pass, enough for speech), a trailing
+    // partial group is dropped
+    static byte[] DecimateToByte(short[] input, int elements, int factor) {
+        int outputs = elements / factor;
+        byte[] buffer = new byte[outputs * 2];
+        for (int o = 0, i = 0; o < outputs; o++) {
+            int sum = 0;
+            for (int k = 0; k < factor; k++) {
+                sum += input[i++];
+            }
+            short v = (short) (sum / factor);
+            buffer[2 * o] = (byte) (v & 0x00FF);
+            buffer[2 * o + 1] = (byte) ((v & 0xFF00) >> 8);
+        }
+        return buffer;
+    }
+
+    static byte [] ShortToByte(short [] input, int elements) {
+        byte [] buffer = new byte[elements * 2];
+        PcmKernels.packLittleEndian(input, elements, buffer);
+        return buffer;
+    }
+}
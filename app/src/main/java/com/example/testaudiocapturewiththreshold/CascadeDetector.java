@@ -0,0 +1,172 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////
+// CascadeDetector.java - Two stage voice detector, cheap decimated gate before the full scan     //
+// Ver 1.0                                                                                        //
+// Language:    Java                                                                              //
+// platform:    Android                                                                           //
+// Application: Audio Capture Application                                                         //
+////////////////////////////////////////////////////////////////////////////////////////////////////
+/*
+* Class Operations:
+* -------------------
+* The recorder spends most of its time in silence, so the per-frame detector cost dominates idle
+* CPU use. Stage one splits the frame into blocks of BLOCK samples and ORs together the
+* magnitudes of each block, a loop without a threshold test or branch per sample. The threshold
+* is checked once per block; a block that cannot hold a sample over it is skipped. Only blocks
+* that may hold one are handed to stage two, the exact sample-by-sample scan the capture loop
+* always used, which finds the first sample over the threshold.
+*
+* Stage one is a bound, not an estimate, so it holds for any input, clicks and broadband bursts
+* included. The magnitude used is v ^ (v >> 31): v for v >= 0 and -v - 1 for v < 0. A sample the
+* full scan accepts (v >= threshold or v <= -threshold) has a magnitude of at least threshold - 1,
+* and the OR of a block is at least as large as every magnitude in it, so a block whose OR stays
+* below threshold - 1 holds no such sample. search() therefore returns the same index as
+* searchThreshold() on every frame. The OR can overshoot (256 | 128 = 384), which only costs a
+* stage two scan of that block. In room noise well below the threshold, stage two never runs.
+*
+* search(ByteBuffer, int) takes the capture loop's direct buffer. There stage one is the block
+* max kernel of PcmKernels, native when libndk1 is loaded, which gives the exact largest
+* magnitude of each block, and stage two reads the one block that reaches the threshold.
+*
+* The idle cost is measured by app/benchmark (make -C app/benchmark detector) rather than by the
+* unit tests, since wall-clock timings on a loaded device are not repeatable.
+*
+* Required Files:
+* ---------------
+*   - PcmKernels.java
+*
+*/
+
+package com.example.testaudiocapturewiththreshold;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// Class body
+public class CascadeDetector {
+    public static final int BLOCK = 64;
+
+    private short mThreshold;
+    private ByteBuffer mBlockPeaks;  // stage one output for direct buffers
+
+    // Statistics
+    private long framesGated = 0;
+    private long framesEscalated = 0;  // silent, but stage two had to look
+    private long framesDetected = 0;
+    private long samplesScanned = 0;   // by stage two
+
+    //-------------< Constructor >--------------------------------------------------------------
+    public CascadeDetector(short threshold) {
+        setThreshold(threshold);
+    }
+
+    public void setThreshold(short threshold) {
+        mThreshold = threshold;
+    }
+
+    public short getThreshold() {
+        return mThreshold;
+    }
+
+    //-------------< Index of the first sample over the threshold, -1 if the frame is silent >--
+    public int search(short[] samples, int count) {
+        int threshold = mThreshold;
+        int gate = threshold - 1;
+        boolean escalated = false;
+        for (int start = 0; start < count; start += BLOCK) {
+            int end = Math.min(start + BLOCK, count);
+            // stage one: OR of the magnitudes of the block
+            int bits = 0;
+            for (int i = start; i < end; i++) {
+                int v = samples[i];
+                bits |= v ^ (v >> 31);
+            }
+            if (bits < gate) {
+                continue;
+            }
+            escalated = true;
+            int peakIndex = searchThreshold(samples, start, end, (short) threshold);
+            samplesScanned += (peakIndex > -1 ? peakIndex + 1 : end) - start;
+            if (peakIndex > -1) {
+                framesDetected++;
+                return peakIndex;
+            }
+        }
+        if (escalated) {
+            framesEscalated++;
+        } else {
+            framesGated++;
+        }
+        return -1;
+    }
+
+    // The same search on a direct buffer of 16 bit native order samples
+    public int search(ByteBuffer pcm, int count) {
+        if (count <= 0) {
+            framesGated++;
+            return -1;
+        }
+        int blocks = (count + BLOCK - 1) / BLOCK;
+        if (mBlockPeaks == null || mBlockPeaks.capacity() < blocks * 2) {
+            mBlockPeaks = ByteBuffer.allocateDirect(blocks * 2).order(ByteOrder.nativeOrder());
+        }
+        PcmKernels.blockMax(pcm, count, BLOCK, mBlockPeaks);
+        int threshold = mThreshold;
+        for (int block = 0; block < blocks; block++) {
+            if (mBlockPeaks.getShort(2 * block) < threshold) {
+                continue;
+            }
+            ByteBuffer in = pcm.order() == ByteOrder.nativeOrder() ? pcm : pcm.duplicate().order(ByteOrder.nativeOrder());
+            int start = block * BLOCK;
+            int end = Math.min(start + BLOCK, count);
+            for (int i = start; i < end; i++) {
+                int v = in.getShort(2 * i);
+                if (v >= threshold || v <= -threshold) {
+                    samplesScanned += i - start + 1;
+                    framesDetected++;
+                    return i;
+                }
+            }
+        }
+        framesGated++;
+        return -1;
+    }
+
+    // Stage two: decide if the recorded samples surpass the threshold, sample by sample
+    static int searchThreshold(short[] arr, int count, short thr) {
+        return searchThreshold(arr, 0, count, thr);
+    }
+
+    static int searchThreshold(short[] arr, int from, int to, short thr) {
+        int peakIndex;
+        for (peakIndex = from; peakIndex < to; peakIndex++) {
+            if ((arr[peakIndex] >= thr) || (arr[peakIndex] <= -thr)) {
+                // if it surpasses the threshold, returns the peak index
+                return peakIndex;
+            }
+        }
+        return -1; //not found
+    }
+
+    public long getFramesGated() {
+        return framesGated;
+    }
+
+
+    public long getFramesDetected() {
+        return framesDetected;
+    }
+
+    public long getFramesEscalated() {
+        return framesEscalated;
+    }
+
+    // Samples stage two looked at
+    public long getSamplesScanned() {
+        return samplesScanned;
+    }
+
+    public String statistics() {
+        return "frames gated: " + framesGated + " escalated: " + framesEscalated + " detected: " + framesDetected
+                + " stage two samples: " + samplesScanned;
+    }
+}
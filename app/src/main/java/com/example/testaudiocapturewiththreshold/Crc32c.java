@@ -0,0 +1,94 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////
+// Crc32c.java - Incremental CRC-32C (Castagnoli) checksum of a recording                         //
+// Ver 1.0                                                                                        //
+// Language:    Java                                                                              //
+// platform:    Android                                                                           //
+// Application: Audio Capture Application                                                         //
+////////////////////////////////////////////////////////////////////////////////////////////////////
+/*
+* Class Operations:
+* -------------------
+* AdtsAudioSink feeds every byte it writes through update() on its way to the file, so the
+* checksum of a finished recording is known without reading the file back from flash. The
+* RecordingStore keeps it in the index and the HttpUploadTransport sends it with the upload, the
+* server compares it with the bytes it received. java.util.zip.CRC32C only exists from API 26,
+* so this is the plain table driven algorithm (reflected polynomial 0x82F63B78).
+*
+* Value format: the unsigned 32 bit checksum in a long, UNKNOWN (-1) where none was computed,
+* e.g. for MPEG-4 recordings or recordings recovered after a crash.
+*
+* Required Files:
+* ---------------
+*
+*/
+
+package com.example.testaudiocapturewiththreshold;
+
+import java.nio.ByteBuffer;
+
+// Class body
+public class Crc32c {
+    public static final long UNKNOWN = -1;
+    private static final int POLYNOMIAL = 0x82F63B78;
+    private static final int SCRATCH_SIZE = 4096;
+    private static final int[] TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int k = 0; k < 8; k++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+            }
+            TABLE[i] = crc;
+        }
+    }
+
+    private int mCrc = 0xFFFFFFFF;
+    private byte[] mScratch;  // copy of direct buffer contents, allocated on first use
+
+    public void update(byte[] data, int offset, int length) {
+        int crc = mCrc;
+        for (int i = offset; i < offset + length; i++) {
+            crc = (crc >>> 8) ^ TABLE[(crc ^ data[i]) & 0xFF];
+        }
+        mCrc = crc;
+    }
+
+    // Checksums the remaining bytes of the buffer without moving its position
+    public void update(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            return;
+        }
+        if (mScratch == null) {
+            mScratch = new byte[SCRATCH_SIZE];
+        }
+        ByteBuffer view = buffer.duplicate();
+        while (view.hasRemaining()) {
+            int length = Math.min(view.remaining(), mScratch.length);
+            view.get(mScratch, 0, length);
+            update(mScratch, 0, length);
+        }
+    }
+
+    public long getValue() {
+        return ~mCrc & 0xFFFFFFFFL;
+    }
+
+    public void reset() {
+        mCrc = 0xFFFFFFFF;
+    }
+
+    // Eight lower case hex digits, as sent in the upload header
+    public static String toHex(long value) {
+        return String.format("%08x", value);
+    }
+
+    public static long parseHex(String value) {
+        try {
+            return Long.parseLong(value.trim(), 16) & 0xFFFFFFFFL;
+        } catch (NumberFormatException e) {
+            return UNKNOWN;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////
+// EncodedAudioSink.java - Destination for the encoded audio produced by AudioEncoder             //
+// Ver 1.0                                                                                        //
+// Language:    Java                                                                              //
+// platform:    Android                                                                           //
+// Application: Audio Capture Application                                                         //
+////////////////////////////////////////////////////////////////////////////////////////////////////
+/*
+* Interface Operations:
+* -------------------
+* AudioEncoder hands every encoded AAC access unit to an EncodedAudioSink from its drainEncoder
+* loop. The methods mirror the subset of MediaMuxer that AudioEncoder uses, so the MPEG-4 muxer
+* (MuxerAudioSink) and the crash-safe streaming writer (AdtsAudioSink) are interchangeable.
+*
+* Required Files:
+* ---------------
+*   - MuxerAudioSink.java, AdtsAudioSink.java
+*
+*/
+
+package com.example.testaudiocapturewiththreshold;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Interface body
+public interface EncodedAudioSink {
+
+    // Called once the encoder reports its output format, returns the track index
+    int addTrack(MediaFormat format);
+
+    // Called after all tracks have been added
+    void start();
+
+    // Write one encoded access unit, the buffer is positioned/limited to the payload
+    void writeSampleData(int trackIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) throws IOException;
+
+    // Finish the output, after this the file is complete
+    void stop() throws IOException;
+
+    // Free any resources held by the sink
+    void release();
+}
@@ -0,0 +1,87 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////
+// FanOutFrameConsumer.java - Feeds one capture stream to several encoder outputs at once         //
+// Ver 1.0                                                                                        //
+// Language:    Java                                                                              //
+// platform:    Android                                                                           //
+// Application: Audio Capture Application                                                         //
+////////////////////////////////////////////////////////////////////////////////////////////////////
+/*
+* Class Operations:
+* -------------------
+* Hands every frame selected by the CaptureSession to all of its outputs, e.g. a 24 kbps preview
+* AudioEncoder and a 128 kbps archive AudioEncoder. The same byte array and timestamp are passed
+* to every output without a copy: AudioFrameConsumer implementations only read the array, and
+* CaptureSession never touches it again after offering it. Each AudioEncoder queues the frame on
+* its own single thread executor, so offering returns immediately and a slow output (the archive)
+* never delays a fast one (the preview).
+*
+* Required Files:
+* ---------------
+*   - AudioFrameConsumer.java
+*
+*/
+
+package com.example.testaudiocapturewiththreshold;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// Class body
+public class FanOutFrameConsumer implements AudioFrameConsumer {
+    private final List<AudioFrameConsumer> mOutputs;
+
+    //-------------< Constructor >--------------------------------------------------------------
+    public FanOutFrameConsumer(AudioFrameConsumer... outputs) {
+        this.mOutputs = Collections.unmodifiableList(Arrays.asList(outputs.clone()));
+    }
+
+    public List<AudioFrameConsumer> getOutputs() {
+        return mOutputs;
+    }
+
+    //-------------< Share the read-only frame with every output >------------------------------
+    public void offerAudioEncoder(byte[] input, long presentationTimeStampNs) {
+        for (AudioFrameConsumer output : mOutputs) {
+            output.offerAudioEncoder(input, presentationTimeStampNs);
+        }
+    }
+
+    public void stop() {
+        for (AudioFrameConsumer output : mOutputs) {
+            output.stop();
+        }
+    }
+
+    // The slowest output decides how far behind the capture is
+    public int getQueuedFrames() {
+        int queued = 0;
+        for (AudioFrameConsumer output : mOutputs) {
+            queued = Math.max(queued, output.getQueuedFrames());
+        }
+        return queued;
+    }
+
+    // The outputs compete for the same CPU, so their time adds up
+    public long getCpuTimeNs() {
+        long cpu = 0;
+        for (AudioFrameConsumer output : mOutputs) {
+            long outputCpu = output.getCpuTimeNs();
+            if (outputCpu < 0) {
+                return -1;
+            }
+            cpu += outputCpu;
+        }
+        return cpu;
+    }
+
+    // All outputs share one deadline, returns false if any of them did not stop in time
+    public boolean waitForStop(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        boolean stopped = true;
+        for (AudioFrameConsumer output : mOutputs) {
+            stopped &= output.waitForStop(Math.max(0, deadline - System.currentTimeMillis()));
+        }
+        return stopped;
+    }
+}
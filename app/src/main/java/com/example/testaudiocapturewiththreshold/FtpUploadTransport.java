@@ -0,0 +1,119 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////
+// FtpUploadTransport.java - UploadTransport storing recordings on a FTP server                   //
+// Ver 1.0                                                                                        //
+// Language:    Java                                                                              //
+// platform:    Android                                                                           //
+// Application: Audio Capture Application                                                         //
+////////////////////////////////////////////////////////////////////////////////////////////////////
+/*
+* Class Operations:
+* -------------------
+* Uploads recordings with the blocking commons-net FTPClient, one file at a time on a single
+* thread executor. Every upload opens its own control connection, logs in, and stores the file
+* over a separate data connection.
+*
+* Required Files:
+* ---------------
+*   - UploadTransport.java, commons-net-ftp-2.0.jar
+*
+*/
+
+package com.example.testaudiocapturewiththreshold;
+
+import android.util.Log;
+
+import org.apache.commons.net.ftp.FTPClient;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+// Class body
+public class FtpUploadTransport implements UploadTransport {
+    private static final String TAG = FtpUploadTransport.class.getSimpleName();
+
+    private final String mHost;
+    private final int mPort;
+    private final String mUser;
+    private final String mPassword;
+    private final String mDirectory;
+    private final ExecutorService uploadService = Executors.newSingleThreadExecutor();
+
+    //-------------< Constructor >--------------------------------------------------------------
+    public FtpUploadTransport(String host, int port, String user, String password, String directory) {
+        this.mHost = host;
+        this.mPort = port;
+        this.mUser = user;
+        this.mPassword = password;
+        this.mDirectory = directory;
+    }
+
+    @Override
+    public void upload(File file, Callback callback) {
+        upload(file, Crc32c.UNKNOWN, callback);
+    }
+
+    // The checksum is not sent, FTP has no standard command to verify it
+    @Override
+    public void upload(final File file, long checksum, final Callback callback) {
+        try {
+            uploadService.submit(new Runnable() {
+                public void run() {
+                    IOException error = null;
+                    boolean uploaded = false;
+                    try {
+                        uploaded = uploadFile(file);
+                    } catch (IOException e) {
+                        error = e;
+                    }
+                    callback.onUploadFinished(file, uploaded, error);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            callback.onUploadFinished(file, false, new IOException("transport closed"));
+        }
+    }
+
+    @Override
+    public void close() {
+        uploadService.shutdown();
+    }
+
+    //-------------< Connect, log in, store the file and disconnect >---------------------------
+    private boolean uploadFile(File file) throws IOException {
+        FTPClient client = new FTPClient();
+        FileInputStream input = null;
+        try {
+            Log.w(TAG, "Connecting to FTP Server");
+            client.connect(mHost, mPort);
+            if (!client.login(mUser, mPassword)) {
+                Log.w(TAG, "FTP login refused");
+                return false;
+            }
+            Log.w(TAG, "Logged on");
+            client.setFileType(FTPClient.BINARY_FILE_TYPE);
+            client.changeWorkingDirectory(mDirectory);
+            input = new FileInputStream(file);
+            boolean uploaded = client.storeFile(file.getName(), input);
+            Log.w(TAG, uploaded ? "File uploaded" : "File upload rejected");
+            return uploaded;
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            try {
+                Log.w(TAG, "Trying to disconnect");
+                client.disconnect();
+            } catch (IOException e2) {
+                e2.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,400 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////
+// HttpUploadTransport.java - Non-blocking UploadTransport sending chunked HTTP PUT requests      //
+// Ver 1.0                                                                                        //
+// Language:    Java                                                                              //
+// platform:    Android                                                                           //
+// Application: Audio Capture Application                                                         //
+////////////////////////////////////////////////////////////////////////////////////////////////////
+/*
+* Class Operations:
+* -------------------
+* All uploads run on one selector thread. Each upload is a single HTTP/1.1 PUT of
+* <base path>/<file name> over its own non-blocking SocketChannel, the body is streamed from the
+* file in chunked transfer encoding so the length never has to be known up front. Every chunk is
+* sent with one gathering write (chunk header, file data in a direct buffer, CRLF). Up to
+* MAX_CONCURRENT_UPLOADS connections are multiplexed at once, further uploads wait in a queue.
+* An upload succeeds when the server answers with a 2xx status line; connections that make no
+* progress for IO_TIMEOUT_MS are failed.
+*
+* A known checksum is sent as an X-Checksum-CRC32C header. The server compares it with the body
+* it received and answers STATUS_CHECKSUM_MISMATCH if the upload was corrupted or truncated on
+* the way. Such uploads are sent again from the start, and so are uploads that failed with an
+* I/O error, a timeout or a connection closed without a status line, up to MAX_ATTEMPTS times
+* in all. Any other status from the server is final.
+*
+* Required Files:
+* ---------------
+*   - UploadTransport.java, Crc32c.java
+*
+*/
+
+package com.example.testaudiocapturewiththreshold;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Class body
+public class HttpUploadTransport implements UploadTransport {
+    private static final String TAG = HttpUploadTransport.class.getSimpleName();
+
+    private static final int CHUNK_SIZE = 32 * 1024;
+    static final int MAX_CONCURRENT_UPLOADS = 4;
+    private static final long IO_TIMEOUT_MS = 30000;
+    private static final long SELECT_TIMEOUT_MS = 1000;
+    private static final int MAX_RESPONSE_HEADER = 1024;
+    public static final String CHECKSUM_HEADER = "X-Checksum-CRC32C";
+    public static final int STATUS_CHECKSUM_MISMATCH = 422;
+    public static final int MAX_ATTEMPTS = 3;
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+
+    private final String mHost;
+    private final int mPort;
+    private final String mPath;
+    private final Selector mSelector;
+    private final Thread mSelectorThread;
+
+    // Handed over from any thread to the selector thread
+    private final ConcurrentLinkedQueue<Upload> mSubmitted = new ConcurrentLinkedQueue<Upload>();
+    private volatile boolean mClosed = false;
+
+    // Selector thread only
+    private final LinkedList<Upload> mWaiting = new LinkedList<Upload>();
+    private int mActive = 0;
+
+    //-------------< Constructor, url is the base e.g. http://192.168.0.11:8080/upload/ >--------
+    public HttpUploadTransport(String url) throws IOException {
+        URI uri = URI.create(url);
+        if (!"http".equals(uri.getScheme()) || uri.getHost() == null) {
+            throw new IOException("unsupported upload url: " + url);
+        }
+        mHost = uri.getHost();
+        mPort = uri.getPort() < 0 ? 80 : uri.getPort();
+        String path = (uri.getRawPath() == null || uri.getRawPath().length() == 0) ? "/" : uri.getRawPath();
+        mPath = path.endsWith("/") ? path : path + "/";
+
+        mSelector = Selector.open();
+        mSelectorThread = new Thread(new Runnable() {
+            public void run() {
+                selectLoop();
+            }
+        }, TAG);
+        mSelectorThread.setDaemon(true);
+        mSelectorThread.start();
+    }
+
+    @Override
+    public void upload(File file, Callback callback) {
+        upload(file, Crc32c.UNKNOWN, callback);
+    }
+
+    @Override
+    public void upload(File file, long checksum, Callback callback) {
+        if (mClosed) {
+            callback.onUploadFinished(file, false, new IOException("transport closed"));
+            return;
+        }
+        Upload upload = new Upload(file, checksum, callback, 1);
+        mSubmitted.add(upload);
+        // close() may have raced in and the selector thread already failed the queue; whoever
+        // removes the upload from mSubmitted reports it, so the callback runs exactly once
+        if (mClosed && mSubmitted.remove(upload)) {
+            callback.onUploadFinished(file, false, new IOException("transport closed"));
+            return;
+        }
+        mSelector.wakeup();
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+        mSelector.wakeup();
+    }
+
+    //-------------< Selector thread body >-----------------------------------------------------
+    private void selectLoop() {
+        try {
+            while (!mClosed) {
+                startWaitingUploads();
+                mSelector.select(SELECT_TIMEOUT_MS);
+                Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Upload upload = (Upload) key.attachment();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isConnectable()) {
+                            upload.finishConnect();
+                        } else if (key.isWritable()) {
+                            upload.write();
+                        } else if (key.isReadable()) {
+                            upload.read();
+                        }
+                    } catch (IOException e) {
+                        fail(upload, e);
+                    }
+                }
+                expireStalledUploads();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "selector failed", e);
+        } finally {
+            failAll();
+            try {
+                mSelector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void startWaitingUploads() {
+        Upload upload;
+        while ((upload = mSubmitted.poll()) != null) {
+            mWaiting.add(upload);
+        }
+        while (mActive < MAX_CONCURRENT_UPLOADS && !mWaiting.isEmpty()) {
+            upload = mWaiting.removeFirst();
+            mActive++;
+            try {
+                upload.start();
+            } catch (IOException e) {
+                fail(upload, e);
+            }
+        }
+    }
+
+    private void expireStalledUploads() {
+        long now = System.currentTimeMillis();
+        for (Upload upload : activeUploads()) {
+            if (now - upload.lastActivity > IO_TIMEOUT_MS) {
+                fail(upload, new IOException("upload of " + upload.file.getName() + " timed out"));
+            }
+        }
+    }
+
+    private void failAll() {
+        for (Upload upload : activeUploads()) {
+            finish(upload, false, new IOException("transport closed"));
+        }
+        Upload submitted;
+        while ((submitted = mSubmitted.poll()) != null) {  // atomic against upload() removing it
+            mWaiting.add(submitted);
+        }
+        for (Upload upload : mWaiting) {
+            upload.callback.onUploadFinished(upload.file, false, new IOException("transport closed"));
+        }
+        mWaiting.clear();
+    }
+
+    private List<Upload> activeUploads() {
+        List<Upload> uploads = new ArrayList<Upload>();
+        for (SelectionKey key : mSelector.keys()) {
+            if (key.isValid() && key.attachment() != null) {
+                uploads.add((Upload) key.attachment());
+            }
+        }
+        return uploads;
+    }
+
+    private void finish(Upload upload, boolean success, IOException error) {
+        if (upload.finished) {
+            return;
+        }
+        upload.finished = true;
+        upload.close();
+        mActive--;
+        if (error != null) {
+            Log.w(TAG, "upload of " + upload.file.getName() + " failed: " + error.getMessage());
+        } else {
+            Log.w(TAG, success ? "File uploaded" : "File upload rejected");
+        }
+        try {
+            upload.callback.onUploadFinished(upload.file, success, error);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "upload callback failed", e);
+        }
+    }
+
+    // An attempt failed, send the file again unless that was the last attempt or the transport is closing
+    private void fail(Upload upload, IOException error) {
+        if (upload.finished) {
+            return;
+        }
+        if (upload.attempt < MAX_ATTEMPTS && !mClosed) {
+            retry(upload, error);
+        } else if (upload.attempt > 1) {
+            finish(upload, false, new IOException(error.getMessage() + " after " + upload.attempt + " attempts", error));
+        } else {
+            finish(upload, false, error);
+        }
+    }
+
+    // Send the file again from the start, on a new connection
+    private void retry(Upload upload, IOException error) {
+        upload.finished = true;
+        upload.close();
+        mActive--;
+        Log.w(TAG, "uploading " + upload.file.getName() + " failed: " + error.getMessage() + ", attempt "
+                + upload.attempt + " of " + MAX_ATTEMPTS);
+        mWaiting.add(new Upload(upload.file, upload.checksum, upload.callback, upload.attempt + 1));
+    }
+
+    //------------------------ < Upload >-------------------------------------------------------
+    private class Upload {
+        final File file;
+        final long checksum;
+        final Callback callback;
+        final int attempt;
+        FileChannel fileChannel;
+        SocketChannel socket;
+        SelectionKey key;
+        boolean finished = false;
+        long lastActivity;
+
+        // [0] request or chunk header, [1] chunk data, [2] chunk trailer
+        private final ByteBuffer[] out = new ByteBuffer[3];
+        private boolean lastChunkQueued = false;
+        private final ByteBuffer response = ByteBuffer.allocate(MAX_RESPONSE_HEADER);
+
+        Upload(File file, long checksum, Callback callback, int attempt) {
+            this.file = file;
+            this.checksum = checksum;
+            this.callback = callback;
+            this.attempt = attempt;
+        }
+
+        void start() throws IOException {
+            lastActivity = System.currentTimeMillis();
+            fileChannel = new FileInputStream(file).getChannel();
+            socket = SocketChannel.open();
+            socket.configureBlocking(false);
+            out[0] = ByteBuffer.wrap(("PUT " + mPath + file.getName() + " HTTP/1.1\r\n"
+                    + "Host: " + mHost + ":" + mPort + "\r\n"
+                    + "Content-Type: application/octet-stream\r\n"
+                    + (checksum == Crc32c.UNKNOWN ? "" : CHECKSUM_HEADER + ": " + Crc32c.toHex(checksum) + "\r\n")
+                    + "Transfer-Encoding: chunked\r\n"
+                    + "Connection: close\r\n\r\n").getBytes("US-ASCII"));
+            out[1] = ByteBuffer.allocateDirect(CHUNK_SIZE);
+            out[1].limit(0);
+            out[2] = ByteBuffer.wrap(CRLF);
+            out[2].limit(0);
+            boolean connected = socket.connect(new InetSocketAddress(mHost, mPort));
+            key = socket.register(mSelector, connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, this);
+        }
+
+        void finishConnect() throws IOException {
+            if (socket.finishConnect()) {
+                lastActivity = System.currentTimeMillis();
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+        }
+
+        // Write until the socket buffer is full or the whole body has been sent
+        void write() throws IOException {
+            while (true) {
+                if (socket.write(out) > 0) {
+                    lastActivity = System.currentTimeMillis();
+                }
+                if (out[0].hasRemaining() || out[1].hasRemaining() || out[2].hasRemaining()) {
+                    return; // wait for the next OP_WRITE
+                }
+                if (lastChunkQueued) {
+                    key.interestOps(SelectionKey.OP_READ);
+                    return;
+                }
+                nextChunk();
+            }
+        }
+
+        private void nextChunk() throws IOException {
+            ByteBuffer data = out[1];
+            data.clear();
+            int read = fileChannel.read(data);
+            if (read <= 0) {
+                data.limit(0);
+                out[0] = ByteBuffer.wrap(LAST_CHUNK);
+                out[2].limit(0);
+                lastChunkQueued = true;
+                return;
+            }
+            data.flip();
+            out[0] = ByteBuffer.wrap((Integer.toHexString(read) + "\r\n").getBytes("US-ASCII"));
+            out[2].clear();
+        }
+
+        // Only the status line matters, the server closes the connection afterwards
+        void read() throws IOException {
+            int read = socket.read(response);
+            if (read > 0) {
+                lastActivity = System.currentTimeMillis();
+            }
+            int statusCode = parseStatusCode();
+            if (statusCode == STATUS_CHECKSUM_MISMATCH) {
+                // the server received different bytes than the file holds
+                fail(this, new IOException("checksum mismatch"));
+            } else if (statusCode > 0) {
+                finish(this, statusCode >= 200 && statusCode < 300, null);
+            } else if (read < 0 || !response.hasRemaining()) {
+                throw new IOException("no HTTP status line from server");
+            }
+        }
+
+        private int parseStatusCode() throws IOException {
+            byte[] bytes = response.array();
+            for (int i = 1; i < response.position(); i++) {
+                if (bytes[i - 1] == '\r' && bytes[i] == '\n') {
+                    String statusLine = new String(bytes, 0, i - 1, "US-ASCII");
+                    String[] parts = statusLine.split(" ");
+                    if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+                        throw new IOException("malformed status line: " + statusLine);
+                    }
+                    try {
+                        return Integer.parseInt(parts[1]);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("malformed status line: " + statusLine);
+                    }
+                }
+            }
+            return -1;
+        }
+
+        void close() {
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                if (socket != null) {
+                    socket.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            try {
+                if (fileChannel != null) {
+                    fileChannel.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
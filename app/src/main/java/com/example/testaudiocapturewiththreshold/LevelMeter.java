@@ -0,0 +1,114 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////
+// LevelMeter.java - Latest input level and detector state, shared without locks                  //
+// Ver 1.0                                                                                        //
+// Language:    Java                                                                              //
+// platform:    Android                                                                           //
+// Application: Audio Capture Application                                                         //
+////////////////////////////////////////////////////////////////////////////////////////////////////
+/*
+* Class Operations:
+* -------------------
+* A single-value cell between the capture thread and the UI. The capture thread overwrites it
+* once per frame with the frame's peak, RMS and detector state; the UI reads the latest value at
+* display rate and skips frames it did not look at. Everything is packed into one AtomicLong, so
+* a reader never sees peak and state from different frames, nothing is allocated per frame and
+* no message is queued to the UI thread however fast frames arrive.
+*
+* Layout of the value (high to low bits): 24 bit sequence, 8 bit state, 16 bit RMS, 16 bit peak.
+* The sequence increases with every published frame, so the reader can tell whether anything is new.
+*
+* Measuring a frame is a full peak and sum-of-squares pass, which would undo the cheap silence
+* gate of CascadeDetector if it ran on every frame. So a frame is only measured when the reader
+* has polled since the last one: read() raises a flag, publish(short[], int, int) clears it and
+* measures, and otherwise returns at the cost of one volatile read. With the UI polling at about
+* 30 fps at most one frame per poll is scanned, and none while nobody looks.
+*
+* Required Files:
+* ---------------
+*
+*/
+
+package com.example.testaudiocapturewiththreshold;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Class body
+public class LevelMeter {
+    public static final int STATE_IDLE = 0;            // nothing captured yet
+    public static final int STATE_VOICE = 1;           // above the threshold, recorded
+    public static final int STATE_PAUSE_RECORDED = 2;  // silence within the natural pause, recorded
+    public static final int STATE_SILENCE = 3;         // silence that is dropped
+
+    private static final long SEQUENCE_MASK = 0xFFFFFFL;
+
+    private final AtomicLong mCell = new AtomicLong();
+    private long mSequence = 0; // only touched by the single writer
+    private volatile boolean mRequested = true; // the reader polled since the last measured frame
+
+    //-------------< Called by the capture thread, once per frame >------------------------------
+    public void publish(int peak, int rms, int state) {
+        mSequence = (mSequence + 1) & SEQUENCE_MASK;
+        // single writer, so an ordered store is enough and avoids a full fence per frame
+        mCell.lazySet(pack(mSequence, state, peak, rms));
+    }
+
+    // Measure a frame and publish it, if the reader asked for a new value
+    public void publish(short[] buffer, int count, int state) {
+        if (!mRequested) {
+            return;
+        }
+        mRequested = false;
+        publish(PcmKernels.peak(buffer, count), (int) PcmKernels.rms(buffer, count), state);
+    }
+
+    // The same for a frame in a direct buffer, measured by the native kernels
+    public void publish(ByteBuffer pcm, int count, int state) {
+        if (!mRequested) {
+            return;
+        }
+        mRequested = false;
+        publish(PcmKernels.peak(pcm, count), (int) PcmKernels.rms(pcm, count), state);
+    }
+
+    // Back to idle, also called by the capture thread once it stops
+    public void reset() {
+        mCell.set(pack(mSequence = (mSequence + 1) & SEQUENCE_MASK, STATE_IDLE, 0, 0));
+    }
+
+    //-------------< Called by the reader, decode the value with the static getters >-----------
+    public long read() {
+        mRequested = true;
+        return mCell.get();
+    }
+
+    static long pack(long sequence, int state, int peak, int rms) {
+        return (sequence & SEQUENCE_MASK) << 40 | (long) (state & 0xFF) << 32
+                | (long) clamp(rms) << 16 | clamp(peak);
+    }
+
+    private static int clamp(int level) {
+        return level < 0 ? 0 : level > 0xFFFF ? 0xFFFF : level;
+    }
+
+    public static int peakOf(long value) {
+        return (int) (value & 0xFFFF);
+    }
+
+    public static int rmsOf(long value) {
+        return (int) (value >>> 16 & 0xFFFF);
+    }
+
+    public static int stateOf(long value) {
+        return (int) (value >>> 32 & 0xFF);
+    }
+
+    public static int sequenceOf(long value) {
+        return (int) (value >>> 40 & SEQUENCE_MASK);
+    }
+
+    // Level in dB relative to full scale, -inf shown as the floor
+    public static double toDbfs(int level, double floorDb) {
+        return level <= 0 ? floorDb : Math.max(floorDb, 20 * Math.log10(level / 32768.0));
+    }
+}
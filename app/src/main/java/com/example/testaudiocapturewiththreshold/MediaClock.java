@@ -0,0 +1,31 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////
+// MediaClock.java - Time base for presentation timestamps and pause lengths                      //
+// Ver 1.0                                                                                        //
+// Language:    Java                                                                              //
+// platform:    Android                                                                           //
+// Application: Audio Capture Application                                                         //
+////////////////////////////////////////////////////////////////////////////////////////////////////
+/*
+* Interface Operations:
+* -------------------
+* The capture pipeline never asks the system for the time. It advances a MediaClock by the number
+* of samples it has consumed and reads the time from it, so timestamps and silence lengths follow
+* the audio itself. SampleClock is the implementation used in the app; tests can inject their own.
+*
+* Required Files:
+* ---------------
+*   - SampleClock.java
+*
+*/
+
+package com.example.testaudiocapturewiththreshold;
+
+// Interface body
+public interface MediaClock {
+
+    // Move the clock forward by the given number of samples (per channel)
+    void advance(int samples);
+
+    // Current position in nanoseconds
+    long nowNs();
+}
@@ -0,0 +1,65 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////
+// MuxerAudioSink.java - EncodedAudioSink backed by a MediaMuxer (MPEG-4 output)                  //
+// Ver 1.0                                                                                        //
+// Language:    Java                                                                              //
+// platform:    Android                                                                           //
+// Application: Audio Capture Application                                                         //
+////////////////////////////////////////////////////////////////////////////////////////////////////
+/*
+* Class Operations:
+* -------------------
+* Thin adapter that forwards to a MediaMuxer. The resulting .m4a file is only playable after
+* stop() has written the moov box, so a crash during the session loses the whole recording.
+* Use AdtsAudioSink when the output has to survive a crash or be uploaded while it grows.
+*
+* Required Files:
+* ---------------
+*   - EncodedAudioSink.java
+*
+*/
+
+package com.example.testaudiocapturewiththreshold;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+
+import java.nio.ByteBuffer;
+
+// Class body
+public class MuxerAudioSink implements EncodedAudioSink {
+    private MediaMuxer mMuxer;
+
+    //-------------< Constructor >--------------------------------------------------------------
+    public MuxerAudioSink(MediaMuxer muxer) {
+        this.mMuxer = muxer;
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        return mMuxer.addTrack(format);
+    }
+
+    @Override
+    public void start() {
+        mMuxer.start();
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+        mMuxer.writeSampleData(trackIndex, encodedData, bufferInfo);
+    }
+
+    @Override
+    public void stop() {
+        mMuxer.stop();
+    }
+
+    @Override
+    public void release() {
+        if (mMuxer != null) {
+            mMuxer.release();
+            mMuxer = null;
+        }
+    }
+}
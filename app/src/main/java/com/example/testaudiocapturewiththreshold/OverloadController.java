@@ -0,0 +1,219 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////
+// OverloadController.java - Steps the encoding profile down when the encoder falls behind        //
+// Ver 1.0                                                                                        //
+// Language:    Java                                                                              //
+// platform:    Android                                                                           //
+// Application: Audio Capture Application                                                         //
+////////////////////////////////////////////////////////////////////////////////////////////////////
+/*
+* Class Operations:
+* -------------------
+* CaptureSession reports every frame with the encoders' backlog, from which the controller keeps
+* the lag (backlog in audio time). About once per CPU_SAMPLE_INTERVAL_NS of audio, and only while
+* an encoder runs, it also reports the cumulative CPU time of the encoder and of the capture
+* thread; the load is the CPU time spent per second of audio between two samples, smoothed. The
+* first sample, and the first after a gap, only sets the baseline.
+*
+* When the lag exceeds the lag budget or the load exceeds the CPU budget, a step down to the next
+* cheaper QualityProfile is requested. CaptureSession applies it at the next segment boundary,
+* i.e. in a pause that is not recorded, by finishing the current encoder and starting a new one
+* with the new profile; a running encoder cannot change its bit rate or sample rate. When lag and
+* load stay below half the budgets for RECOVERY_NS of audio, a step back up is requested the same
+* way.
+*
+* If the lag grows past HARD_LAG_FACTOR times the budget before a pause comes, the controller
+* starts shedding: CaptureSession stops handing frames to the lagging encoder, which keeps
+* draining, until the lag is back within the budget. Shed frames are planned loss, they are
+* counted and do not appear on the timeline; this keeps latency bounded without cutting the
+* segment or starting a second encoder next to the lagging one.
+*
+* Where the platform cannot measure CPU time (-1 from either side), the load is not updated and
+* only the lag drives the decisions.
+*
+* Every decision and once a second the current lag and load are logged as TAG-Metrics.
+*
+* Required Files:
+* ---------------
+*   - QualityProfile.java
+*
+*/
+
+package com.example.testaudiocapturewiththreshold;
+
+import android.util.Log;
+
+// Class body
+public class OverloadController {
+    private static final String TAG = OverloadController.class.getSimpleName();
+
+    public static final long DEFAULT_LAG_BUDGET_NS = 2000000000L;  // 2 s of audio waiting for the encoder
+    public static final double DEFAULT_CPU_BUDGET = 0.7;           // CPU seconds per second of audio
+    public static final long RECOVERY_NS = 30000000000L;           // calm audio time before stepping up
+    public static final int HARD_LAG_FACTOR = 3;                   // shed frames beyond this many budgets
+    public static final long CPU_SAMPLE_INTERVAL_NS = 1000000000L; // audio time between CPU samples
+    private static final double LOAD_SMOOTHING = 0.3;              // weight of the newest sample
+    private static final long METRICS_INTERVAL_NS = 1000000000L;
+
+    private final int mSampleRate;
+    private final long mLagBudgetNs;
+    private final double mCpuBudget;
+
+    private QualityProfile mProfile;
+    private QualityProfile mPending;
+    private long mLagNs = 0;
+    private double mLoad = 0;
+    private long mLastEncoderCpuNs = 0;
+    private long mLastCaptureCpuNs = -1;  // -1 until a baseline is taken
+    private long mLastCpuSampleNs = 0;
+    private long mNextCpuSampleNs = 0;
+    private boolean mShedding = false;
+    private long mCalmNs = 0;
+    private long mAudioNs = 0;
+    private long mNextMetricsNs = 0;
+    private int mStepsDown = 0, mStepsUp = 0, mSheddingEpisodes = 0;
+    private long mShedFrames = 0;
+
+    //-------------< Constructor >--------------------------------------------------------------
+    public OverloadController(int sampleRate) {
+        this(sampleRate, DEFAULT_LAG_BUDGET_NS, DEFAULT_CPU_BUDGET, QualityProfile.FULL);
+    }
+
+    public OverloadController(int sampleRate, long lagBudgetNs, double cpuBudget, QualityProfile initialProfile) {
+        this.mSampleRate = sampleRate;
+        this.mLagBudgetNs = lagBudgetNs;
+        this.mCpuBudget = cpuBudget;
+        this.mProfile = initialProfile;
+    }
+
+    //-------------< Account one frame, called by the capture thread >--------------------------
+    public void onFrame(int samples, int queuedFrames) {
+        if (samples <= 0) {
+            return;
+        }
+        long frameNs = samples * 1000000000L / mSampleRate;
+        mAudioNs += frameNs;
+        mLagNs = queuedFrames * frameNs;
+
+        if (!mShedding && mLagNs > HARD_LAG_FACTOR * mLagBudgetNs) {
+            mShedding = true;
+            mSheddingEpisodes++;
+            logDecision("shedding frames");
+        } else if (mShedding && mLagNs <= mLagBudgetNs) {
+            mShedding = false;
+            logDecision("accepting frames again after " + mShedFrames + " shed in total");
+        }
+
+        if (mLagNs > mLagBudgetNs || mLoad > mCpuBudget) {
+            mCalmNs = 0;
+            if (mPending == null && mProfile.cheaper() != null) {
+                mPending = mProfile.cheaper();
+                logDecision("step down requested");
+            }
+        } else if (mLagNs <= mLagBudgetNs / 2 && mLoad <= mCpuBudget / 2) {
+            mCalmNs += frameNs;
+            if (mPending != null && mPending.ordinal() > mProfile.ordinal()) {
+                mPending = null;  // the overload went away before a boundary came
+                logDecision("step down cancelled");
+            }
+            if (mCalmNs >= RECOVERY_NS && mPending == null && mProfile.better() != null) {
+                mPending = mProfile.better();
+                mCalmNs = 0;
+                logDecision("step up requested");
+            }
+        } else {
+            mCalmNs = 0;
+        }
+
+        if (mAudioNs >= mNextMetricsNs) {
+            Log.i(TAG + "-Metrics", "profile=" + mProfile + " lag_ms=" + mLagNs / 1000000 + " load="
+                    + Math.round(mLoad * 100) + "% pending=" + mPending + " shedding=" + mShedding);
+            mNextMetricsNs = mAudioNs + METRICS_INTERVAL_NS;
+        }
+    }
+
+    //-------------< CPU time, sampled about once a second of audio >--------------------------
+    public boolean isCpuSampleDue() {
+        return mAudioNs >= mNextCpuSampleNs;
+    }
+
+    // Both values are cumulative: the current encoder's CPU time and the capture thread's, -1 if unknown
+    public void onCpuSample(long encoderCpuNs, long captureCpuNs) {
+        long audioNs = mAudioNs - mLastCpuSampleNs;
+        long lastEncoderCpuNs = mLastEncoderCpuNs;
+        long lastCaptureCpuNs = mLastCaptureCpuNs;
+        mLastCpuSampleNs = mAudioNs;
+        mNextCpuSampleNs = mAudioNs + CPU_SAMPLE_INTERVAL_NS;
+        if (encoderCpuNs < 0 || captureCpuNs < 0) {
+            mLastCaptureCpuNs = -1;  // the platform cannot tell, keep the load as it is
+            return;
+        }
+        mLastEncoderCpuNs = encoderCpuNs;
+        mLastCaptureCpuNs = captureCpuNs;
+        if (lastCaptureCpuNs < 0 || audioNs <= 0 || audioNs > 2 * CPU_SAMPLE_INTERVAL_NS) {
+            return;  // baseline only, nothing or too much happened in between
+        }
+        // the cumulative encoder time starts over with every new encoder
+        long encoderDelta = encoderCpuNs >= lastEncoderCpuNs ? encoderCpuNs - lastEncoderCpuNs : encoderCpuNs;
+        double load = (double) (encoderDelta + captureCpuNs - lastCaptureCpuNs) / audioNs;
+        mLoad += LOAD_SMOOTHING * (load - mLoad);
+    }
+
+    public boolean hasPendingChange() {
+        return mPending != null;
+    }
+
+    // The backlog is too far behind, frames are not handed to the encoder until it catches up
+    public boolean isShedding() {
+        return mShedding;
+    }
+
+    // A frame was dropped instead of encoded while shedding
+    public void onFrameShed() {
+        mShedFrames++;
+    }
+
+    public long getShedFrames() {
+        return mShedFrames;
+    }
+
+    //-------------< Switch to the pending profile at a segment boundary >----------------------
+    public QualityProfile applyPendingChange() {
+        if (mPending == null) {
+            return mProfile;
+        }
+        if (mPending.ordinal() > mProfile.ordinal()) {
+            mStepsDown++;
+        } else {
+            mStepsUp++;
+        }
+        QualityProfile previous = mProfile;
+        mProfile = mPending;
+        mPending = null;
+        mCalmNs = 0;
+        mLastEncoderCpuNs = 0;  // the next encoder counts from zero
+        logDecision("segment boundary " + previous + " -> " + mProfile);
+        return mProfile;
+    }
+
+    public QualityProfile getProfile() {
+        return mProfile;
+    }
+
+    public long getLagNs() {
+        return mLagNs;
+    }
+
+    public double getLoad() {
+        return mLoad;
+    }
+
+    public String statistics() {
+        return "profile " + mProfile + ", " + mStepsDown + " steps down, " + mStepsUp + " steps up, "
+                + mShedFrames + " frames shed in " + mSheddingEpisodes + " episodes";
+    }
+
+    private void logDecision(String decision) {
+        Log.i(TAG + "-Metrics", decision + ": profile=" + mProfile + " pending=" + mPending + " lag_ms="
+                + mLagNs / 1000000 + " load=" + Math.round(mLoad * 100) + "% audio_s=" + mAudioNs / 1000000000L);
+    }
+}
@@ -0,0 +1,215 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////
+// PcmKernels.java - PCM hot-path kernels, native (libndk1) with a pure Java fallback             //
+// Ver 1.0                                                                                        //
+// Language:    Java                                                                              //
+// platform:    Android                                                                           //
+// Application: Audio Capture Application                                                         //
+////////////////////////////////////////////////////////////////////////////////////////////////////
+/*
+* Class Operations:
+* -------------------
+* Per-frame kernels over 16 bit PCM held in a direct ByteBuffer in native byte order (the layout
+* AudioRecord.read(ByteBuffer, int) produces): little-endian byte packing, peak, RMS and block-max
+* decimation. When libndk1 (jni/native.c) is loaded and the buffers are direct, the C kernels run
+* on the buffer memory without pinning or copying any Java array; otherwise, or when the library
+* is missing, the same operation runs in Java. Both paths give identical results.
+*
+* The capture loop reads into a direct buffer, so CascadeDetector (block max) and the level meter
+* (peak, RMS) run natively on it. Packing into a byte[] for the encoder is a bulk copy on little
+* endian devices, and frames that are only available as short[] (replays, tests) use the Java
+* kernels at the bottom.
+*
+* Indices are absolute from the start of each buffer, positions and limits are ignored and left
+* untouched. The class has no Android dependencies so it can also be benchmarked on a host JVM
+* against a library built with jni/Makefile.host (make -C app/benchmark kernels).
+*
+* Required Files:
+* ---------------
+*   - jni/native.c, jni/Android.mk
+*
+*/
+
+package com.example.testaudiocapturewiththreshold;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// Class body
+public final class PcmKernels {
+    private static final String LIBRARY_NAME = "ndk1";
+    private static final boolean NATIVE_AVAILABLE;
+    private static final String NATIVE_LOAD_ERROR;
+
+    static {
+        boolean loaded = false;
+        String error = null;
+        try {
+            System.loadLibrary(LIBRARY_NAME);
+            loaded = true;
+        } catch (UnsatisfiedLinkError e) {
+            error = e.getMessage();
+        } catch (SecurityException e) {
+            error = e.getMessage();
+        }
+        NATIVE_AVAILABLE = loaded;
+        NATIVE_LOAD_ERROR = error;
+    }
+
+    private PcmKernels() {
+    }
+
+    public static boolean isNativeAvailable() {
+        return NATIVE_AVAILABLE;
+    }
+
+    // Why the library could not be loaded, null if it was
+    public static String getNativeLoadError() {
+        return NATIVE_LOAD_ERROR;
+    }
+
+    //-------------< 16 bit native order samples -> little-endian bytes (cf. ShortToByte) >------
+    public static void packLittleEndian(ByteBuffer pcm, int samples, ByteBuffer out) {
+        checkCapacity(pcm, samples * 2);
+        checkCapacity(out, samples * 2);
+        if (useNative(pcm, out)) {
+            nativePackLittleEndian(pcm, samples, out);
+        } else {
+            javaPackLittleEndian(pcm, samples, out);
+        }
+    }
+
+    // Into a Java array for the encoder, native code could only write there by pinning it
+    public static void packLittleEndian(ByteBuffer pcm, int samples, byte[] out) {
+        checkCapacity(pcm, samples * 2);
+        if (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) {
+            ByteBuffer in = pcm.duplicate();
+            in.clear();
+            in.get(out, 0, samples * 2);  // already the byte layout, one bulk copy
+        } else {
+            javaPackLittleEndian(pcm, samples, ByteBuffer.wrap(out));
+        }
+    }
+
+    //-------------< Largest magnitude in the frame >-------------------------------------------
+    public static int peak(ByteBuffer pcm, int samples) {
+        checkCapacity(pcm, samples * 2);
+        return useNative(pcm, pcm) ? nativePeak(pcm, samples) : javaPeak(pcm, samples);
+    }
+
+    //-------------< Root mean square of the frame >--------------------------------------------
+    public static double rms(ByteBuffer pcm, int samples) {
+        checkCapacity(pcm, samples * 2);
+        if (samples <= 0) {
+            return 0;
+        }
+        long sum = useNative(pcm, pcm) ? nativeSumOfSquares(pcm, samples) : javaSumOfSquares(pcm, samples);
+        return Math.sqrt((double) sum / samples);
+    }
+
+    //-------------< Largest magnitude of every block, out receives 16 bit native order values >
+    public static int blockMax(ByteBuffer pcm, int samples, int block, ByteBuffer out) {
+        if (block <= 0) {
+            throw new IllegalArgumentException("block must be positive");
+        }
+        int blocks = (samples + block - 1) / block;
+        checkCapacity(pcm, samples * 2);
+        checkCapacity(out, blocks * 2);
+        return useNative(pcm, out) ? nativeBlockMax(pcm, samples, block, out) : javaBlockMax(pcm, samples, block, out);
+    }
+
+    private static boolean useNative(ByteBuffer a, ByteBuffer b) {
+        return NATIVE_AVAILABLE && a.isDirect() && b.isDirect();
+    }
+
+    private static void checkCapacity(ByteBuffer buffer, int bytes) {
+        if (bytes < 0 || buffer.capacity() < bytes) {
+            throw new IllegalArgumentException("buffer holds " + buffer.capacity() + " bytes, needs " + bytes);
+        }
+    }
+
+    //-------------< Java implementations, also used directly by the benchmarks >---------------
+    static void javaPackLittleEndian(ByteBuffer pcm, int samples, ByteBuffer out) {
+        ByteBuffer in = pcm.duplicate().order(ByteOrder.nativeOrder());
+        for (int i = 0; i < samples; i++) {
+            short v = in.getShort(2 * i);
+            out.put(2 * i, (byte) (v & 0x00FF));
+            out.put(2 * i + 1, (byte) ((v & 0xFF00) >> 8));
+        }
+    }
+
+    static int javaPeak(ByteBuffer pcm, int samples) {
+        ByteBuffer in = pcm.duplicate().order(ByteOrder.nativeOrder());
+        int peak = 0;
+        for (int i = 0; i < samples; i++) {
+            int v = Math.abs(in.getShort(2 * i));
+            peak = v > peak ? v : peak;
+        }
+        return peak;
+    }
+
+    static long javaSumOfSquares(ByteBuffer pcm, int samples) {
+        ByteBuffer in = pcm.duplicate().order(ByteOrder.nativeOrder());
+        long sum = 0;
+        for (int i = 0; i < samples; i++) {
+            int v = in.getShort(2 * i);
+            sum += v * v;
+        }
+        return sum;
+    }
+
+    static int javaBlockMax(ByteBuffer pcm, int samples, int block, ByteBuffer out) {
+        ByteBuffer in = pcm.duplicate().order(ByteOrder.nativeOrder());
+        ByteBuffer dst = out.duplicate().order(ByteOrder.nativeOrder());
+        int blocks = 0;
+        for (int start = 0; start < samples; start += block) {
+            int end = Math.min(start + block, samples);
+            int peak = 0;
+            for (int i = start; i < end; i++) {
+                int v = Math.abs(in.getShort(2 * i));
+                peak = v > peak ? v : peak;
+            }
+            dst.putShort(2 * blocks++, (short) Math.min(peak, Short.MAX_VALUE));
+        }
+        return blocks;
+    }
+
+    //-------------< Java kernels for frames held in short[] >----------------------------------
+    public static void packLittleEndian(short[] pcm, int samples, byte[] out) {
+        for (int i = 0; i < samples; i++) {
+            short v = pcm[i];
+            out[2 * i] = (byte) (v & 0x00FF);
+            out[2 * i + 1] = (byte) ((v & 0xFF00) >> 8);
+        }
+    }
+
+    public static int peak(short[] pcm, int samples) {
+        int peak = 0;
+        for (int i = 0; i < samples; i++) {
+            int v = pcm[i];
+            int magnitude = v < 0 ? -v : v;
+            peak = magnitude > peak ? magnitude : peak;
+        }
+        return peak;
+    }
+
+    public static double rms(short[] pcm, int samples) {
+        if (samples <= 0) {
+            return 0;
+        }
+        long sum = 0;
+        for (int i = 0; i < samples; i++) {
+            int v = pcm[i];
+            sum += v * v;
+        }
+        return Math.sqrt((double) sum / samples);
+    }
+
+    //-------------< Native implementations, jni/native.c >--------------------------------------
+    static native void nativePackLittleEndian(ByteBuffer src, int samples, ByteBuffer dst);
+
+    static native int nativePeak(ByteBuffer src, int samples);
+
+    static native long nativeSumOfSquares(ByteBuffer src, int samples);
+
+    static native int nativeBlockMax(ByteBuffer src, int samples, int block, ByteBuffer dst);
+}
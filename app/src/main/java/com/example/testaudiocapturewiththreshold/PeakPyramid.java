@@ -0,0 +1,258 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////
+// PeakPyramid.java - Incremental min/max/RMS waveform pyramid written next to a recording        //
+// Ver 1.0                                                                                        //
+// Language:    Java                                                                              //
+// platform:    Android                                                                           //
+// Application: Audio Capture Application                                                         //
+////////////////////////////////////////////////////////////////////////////////////////////////////
+/*
+* Class Operations:
+* -------------------
+* Builds a multi-resolution waveform overview while the recording is made, so a review tool can
+* draw and zoom a multi-hour recording without decoding it (PeakPyramidReader). CaptureSession
+* hands every frame it gives to the encoder to add(), so the pyramid follows the recording's
+* timeline exactly.
+*
+* Level 0 summarizes every BASE_BLOCK samples as min, max and RMS; every following level
+* summarizes FACTOR buckets of the level below. Each level keeps one open accumulator only and
+* appends each finished bucket to its own temp file, so memory does not grow with the length of
+* the recording. finish() closes the partial buckets and assembles the sidecar:
+*
+*   int magic 'PKPY', short version, int sampleRate, int baseBlock, int factor, int levels,
+*   long totalSamples, then per level: long bucketCount, long dataOffset,
+*   then per level the buckets: short min, short max, short rms (big-endian)
+*
+* The last bucket of each level may cover fewer samples, its length follows from totalSamples.
+* If the app dies before finish(), only the temp files are left and discardTemporaryFiles()
+* removes them.
+*
+* Required Files:
+* ---------------
+*
+*/
+
+package com.example.testaudiocapturewiththreshold;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+// Class body
+public class PeakPyramid {
+    public static final int MAGIC = 0x504B5059; // "PKPY"
+    public static final short VERSION = 1;
+    public static final int BASE_BLOCK = 1024;  // samples per level 0 bucket, one AAC frame
+    public static final int FACTOR = 4;
+    public static final int LEVELS = 8;         // top bucket: 1024 * 4^7 samples, ~6 min @ 44.1 kHz
+    public static final int BUCKET_BYTES = 6;
+    public static final int HEADER_BYTES = 4 + 2 + 4 + 4 + 4 + 4 + 8;
+    public static final int LEVEL_ENTRY_BYTES = 16;
+    public static final String SIDECAR_SUFFIX = ".peaks";
+
+    private final File mSidecar;
+    private final int mSampleRate;
+    private final Level[] mLevels = new Level[LEVELS];
+    private long mTotalSamples = 0;
+
+    // The open bucket of one level and the temp file its finished buckets go to
+    private class Level {
+        final int index;
+        final File tempFile;
+        DataOutputStream out;
+        long buckets = 0;
+        int min, max;
+        long sumOfSquares, samples;
+        int merged; // buckets of the level below in the open bucket
+
+        Level(int index) {
+            this.index = index;
+            this.tempFile = temporaryFile(mSidecar, index);
+            reset();
+        }
+
+        void reset() {
+            min = Integer.MAX_VALUE;
+            max = Integer.MIN_VALUE;
+            sumOfSquares = 0;
+            samples = 0;
+            merged = 0;
+        }
+
+        // Write the open bucket and pass it on to the level above
+        void emit() throws IOException {
+            if (out == null) {
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            }
+            out.writeShort(min);
+            out.writeShort(max);
+            out.writeShort((int) Math.min(Short.MAX_VALUE, Math.round(Math.sqrt((double) sumOfSquares / samples))));
+            buckets++;
+            if (index + 1 < LEVELS) {
+                mLevels[index + 1].merge(this);
+            }
+            reset();
+        }
+
+        void merge(Level below) throws IOException {
+            min = Math.min(min, below.min);
+            max = Math.max(max, below.max);
+            sumOfSquares += below.sumOfSquares;
+            samples += below.samples;
+            if (++merged == FACTOR) {
+                emit();
+            }
+        }
+    }
+
+    //-------------< Constructor >--------------------------------------------------------------
+    public PeakPyramid(File sidecar, int sampleRate) {
+        this.mSidecar = sidecar;
+        this.mSampleRate = sampleRate;
+        for (int i = 0; i < LEVELS; i++) {
+            mLevels[i] = new Level(i);
+        }
+    }
+
+    // The sidecar that belongs to a recording
+    public static File sidecarFor(File recording) {
+        return new File(recording.getPath() + SIDECAR_SUFFIX);
+    }
+
+    public File getSidecar() {
+        return mSidecar;
+    }
+
+    public long getTotalSamples() {
+        return mTotalSamples;
+    }
+
+    //-------------< Add recorded samples to level 0 >------------------------------------------
+    public void add(short[] buffer, int count) throws IOException {
+        Level level0 = mLevels[0];
+        int i = 0;
+        while (i < count) {
+            int end = (int) Math.min(count, i + BASE_BLOCK - level0.samples);
+            int min = level0.min, max = level0.max;
+            long sumOfSquares = 0;
+            for (int n = i; n < end; n++) {
+                int v = buffer[n];
+                min = v < min ? v : min;
+                max = v > max ? v : max;
+                sumOfSquares += v * v;
+            }
+            level0.min = min;
+            level0.max = max;
+            level0.sumOfSquares += sumOfSquares;
+            level0.samples += end - i;
+            mTotalSamples += end - i;
+            i = end;
+            if (level0.samples == BASE_BLOCK) {
+                level0.emit();
+            }
+        }
+    }
+
+    //-------------< Close the partial buckets and write the sidecar, nothing if no samples >---
+    public void finish() throws IOException {
+        try {
+            if (mTotalSamples == 0) {
+                return;
+            }
+            // emitting a partial bucket also merges it into the level above, so every level ends
+            // with a bucket covering the last samples
+            for (Level level : mLevels) {
+                if (level.samples > 0) {
+                    level.emit();
+                }
+            }
+            for (Level level : mLevels) {
+                level.out.close();
+                level.out = null;
+            }
+            assemble();
+        } finally {
+            abort(); // closes whatever a failed write left open and removes the level files
+        }
+    }
+
+    // Give up, e.g. after a write error, and leave no files behind
+    public void abort() {
+        for (Level level : mLevels) {
+            if (level.out != null) {
+                try {
+                    level.out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                level.out = null;
+            }
+        }
+        discardTemporaryFiles(mSidecar);
+    }
+
+    // Header and level table, then the level files one after the other; written to a temp file
+    // and renamed so a reader never sees a half written sidecar
+    private void assemble() throws IOException {
+        File partial = new File(mSidecar.getPath() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(partial);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeInt(mSampleRate);
+            out.writeInt(BASE_BLOCK);
+            out.writeInt(FACTOR);
+            out.writeInt(LEVELS);
+            out.writeLong(mTotalSamples);
+            long offset = HEADER_BYTES + LEVELS * LEVEL_ENTRY_BYTES;
+            for (Level level : mLevels) {
+                out.writeLong(level.buckets);
+                out.writeLong(offset);
+                offset += level.buckets * BUCKET_BYTES;
+            }
+            out.flush();
+            FileChannel target = fileOut.getChannel();
+            for (Level level : mLevels) {
+                FileInputStream in = new FileInputStream(level.tempFile);
+                try {
+                    FileChannel source = in.getChannel();
+                    long position = 0, size = source.size();
+                    while (position < size) {
+                        position += source.transferTo(position, size - position, target);
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+            fileOut.getFD().sync();
+        } finally {
+            fileOut.close();
+        }
+        if (!partial.renameTo(mSidecar)) {
+            partial.delete();
+            throw new IOException("cannot create " + mSidecar);
+        }
+    }
+
+    private static File temporaryFile(File sidecar, int level) {
+        return new File(sidecar.getPath() + "." + level + ".tmp");
+    }
+
+    // Remove the per level files (and an unfinished sidecar) left by an interrupted recording
+    public static void discardTemporaryFiles(File sidecar) {
+        for (int i = 0; i < LEVELS; i++) {
+            File file = temporaryFile(sidecar, i);
+            if (file.exists()) {
+                file.delete();
+            }
+        }
+        File partial = new File(sidecar.getPath() + ".tmp");
+        if (partial.exists()) {
+            partial.delete();
+        }
+    }
+}
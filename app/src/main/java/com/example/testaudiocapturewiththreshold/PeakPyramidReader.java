@@ -0,0 +1,140 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////
+// PeakPyramidReader.java - Draws waveform columns from a PeakPyramid sidecar                     //
+// Ver 1.0                                                                                        //
+// Language:    Java                                                                              //
+// platform:    Android                                                                           //
+// Application: Audio Capture Application                                                         //
+////////////////////////////////////////////////////////////////////////////////////////////////////
+/*
+* Class Operations:
+* -------------------
+* Opens a sidecar written by PeakPyramid and reduces any sample range to a given number of pixel
+* columns of min, max and RMS. render() picks the coarsest level that still has at least one
+* bucket per pixel, so a column combines fewer than FACTOR + 1 buckets, and reads just the buckets
+* of the range in one read. The cost depends on the number of pixels, not on the length of the
+* recording or the zoom, and no audio is decoded.
+*
+* Required Files:
+* ---------------
+*   - PeakPyramid.java
+*
+*/
+
+package com.example.testaudiocapturewiththreshold;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+// Class body
+public class PeakPyramidReader {
+    private final RandomAccessFile mFile;
+    private final int mSampleRate;
+    private final int mBaseBlock;
+    private final int mFactor;
+    private final long mTotalSamples;
+    private final long[] mBucketCounts;
+    private final long[] mOffsets;
+
+    //-------------< Constructor, reads and checks the header >--------------------------------
+    public PeakPyramidReader(File sidecar) throws IOException {
+        mFile = new RandomAccessFile(sidecar, "r");
+        try {
+            if (mFile.readInt() != PeakPyramid.MAGIC || mFile.readShort() != PeakPyramid.VERSION) {
+                throw new IOException(sidecar + " is not a peak pyramid");
+            }
+            mSampleRate = mFile.readInt();
+            mBaseBlock = mFile.readInt();
+            mFactor = mFile.readInt();
+            int levels = mFile.readInt();
+            mTotalSamples = mFile.readLong();
+            mBucketCounts = new long[levels];
+            mOffsets = new long[levels];
+            for (int i = 0; i < levels; i++) {
+                mBucketCounts[i] = mFile.readLong();
+                mOffsets[i] = mFile.readLong();
+            }
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public long getTotalSamples() {
+        return mTotalSamples;
+    }
+
+    public int getLevels() {
+        return mBucketCounts.length;
+    }
+
+    public long getBucketCount(int level) {
+        return mBucketCounts[level];
+    }
+
+    public void close() throws IOException {
+        mFile.close();
+    }
+
+    //-------------< Reduce [startSample, endSample) to pixels columns, returns the level used >-
+    // Columns past the end of the recording are left at 0.
+    public int render(long startSample, long endSample, int pixels, short[] min, short[] max, short[] rms)
+            throws IOException {
+        if (pixels <= 0 || endSample <= startSample || startSample < 0) {
+            throw new IllegalArgumentException("empty range or no pixels");
+        }
+        if (min.length < pixels || max.length < pixels || rms.length < pixels) {
+            throw new IllegalArgumentException("output arrays shorter than " + pixels);
+        }
+        double samplesPerPixel = (double) (endSample - startSample) / pixels;
+        int level = 0;
+        long block = mBaseBlock;
+        while (level + 1 < mBucketCounts.length && block * mFactor <= samplesPerPixel) {
+            level++;
+            block *= mFactor;
+        }
+
+        // one read for every bucket touched by the range
+        long first = Math.min(startSample / block, mBucketCounts[level]);
+        long last = Math.min((endSample + block - 1) / block, mBucketCounts[level]);
+        byte[] data = new byte[(int) (last - first) * PeakPyramid.BUCKET_BYTES];
+        mFile.seek(mOffsets[level] + first * PeakPyramid.BUCKET_BYTES);
+        mFile.readFully(data);
+        ByteBuffer buckets = ByteBuffer.wrap(data);
+
+        for (int p = 0; p < pixels; p++) {
+            long from = startSample + (long) (p * samplesPerPixel);
+            long to = Math.max(from + 1, startSample + (long) ((p + 1) * samplesPerPixel));
+            long b0 = from / block;
+            long b1 = Math.min(Math.max(b0 + 1, (to + block - 1) / block), last);
+            int columnMin = 0, columnMax = 0;
+            double sumOfSquares = 0;
+            long samples = 0;
+            for (long b = b0; b < b1; b++) {
+                int at = (int) (b - first) * PeakPyramid.BUCKET_BYTES;
+                short bucketMin = buckets.getShort(at);
+                short bucketMax = buckets.getShort(at + 2);
+                double bucketRms = buckets.getShort(at + 4);
+                long bucketSamples = bucketSamples(level, block, b);
+                columnMin = samples == 0 ? bucketMin : Math.min(columnMin, bucketMin);
+                columnMax = samples == 0 ? bucketMax : Math.max(columnMax, bucketMax);
+                sumOfSquares += bucketRms * bucketRms * bucketSamples;
+                samples += bucketSamples;
+            }
+            min[p] = (short) columnMin;
+            max[p] = (short) columnMax;
+            rms[p] = samples == 0 ? 0 : (short) Math.round(Math.sqrt(sumOfSquares / samples));
+        }
+        return level;
+    }
+
+    // Full buckets cover block samples, the last one whatever is left
+    private long bucketSamples(int level, long block, long bucket) {
+        return bucket == mBucketCounts[level] - 1 ? mTotalSamples - bucket * block : block;
+    }
+}
@@ -0,0 +1,62 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////
+// QualityProfile.java - Encoding profiles the overload controller steps through                  //
+// Ver 1.0                                                                                        //
+// Language:    Java                                                                              //
+// platform:    Android                                                                           //
+// Application: Audio Capture Application                                                         //
+////////////////////////////////////////////////////////////////////////////////////////////////////
+/*
+* Class Operations:
+* -------------------
+* Ordered from the full quality profile to the cheapest one. Each step saves encoder time:
+* a lower bit rate, then half the sample rate (CaptureSession decimates 2:1 before encoding),
+* then natural pauses are no longer recorded, so only frames with voice reach the encoder.
+*
+* Required Files:
+* ---------------
+*
+*/
+
+package com.example.testaudiocapturewiththreshold;
+
+// Enum body
+public enum QualityProfile {
+    FULL(128000, 1, true),
+    LOW_BIT_RATE(64000, 1, true),
+    HALF_SAMPLE_RATE(48000, 2, true),
+    PAUSES_DROPPED(48000, 2, false);
+
+    private final int mArchiveBitRate;
+    private final int mDecimation;
+    private final boolean mRecordsPauses;
+
+    QualityProfile(int archiveBitRate, int decimation, boolean recordsPauses) {
+        this.mArchiveBitRate = archiveBitRate;
+        this.mDecimation = decimation;
+        this.mRecordsPauses = recordsPauses;
+    }
+
+    public int getArchiveBitRate() {
+        return mArchiveBitRate;
+    }
+
+    // Input samples per encoded sample
+    public int getDecimation() {
+        return mDecimation;
+    }
+
+    // Whether silence within the natural pause is still recorded
+    public boolean recordsPauses() {
+        return mRecordsPauses;
+    }
+
+    // The next cheaper profile, null if this is the cheapest
+    public QualityProfile cheaper() {
+        return ordinal() + 1 < values().length ? values()[ordinal() + 1] : null;
+    }
+
+    // The next better profile, null if this is FULL
+    public QualityProfile better() {
+        return ordinal() > 0 ? values()[ordinal() - 1] : null;
+    }
+}
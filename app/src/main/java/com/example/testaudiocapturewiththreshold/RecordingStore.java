@@ -0,0 +1,421 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////
+// RecordingStore.java - Local recording store with on-disk index, byte quota and eviction        //
+// Ver 1.0                                                                                        //
+// Language:    Java                                                                              //
+// platform:    Android                                                                           //
+// Application: Audio Capture Application                                                         //
+////////////////////////////////////////////////////////////////////////////////////////////////////
+/*
+* Class Operations:
+* -------------------
+* This class owns the AudioRecorder folder. Every recording is registered in an index kept in
+* memory as an access-ordered LinkedHashMap (least recently used first) and persisted to a small
+* text file, so lookups, quota accounting and eviction never need to scan the directory. Before
+* a new recording is created, recordings that have already been uploaded are deleted in LRU order
+* until the new recording (plus its preallocation) fits into the byte quota.
+*
+* A recording can have companions, e.g. the speech preview of an archive, created with
+* createCompanion: they share the recording's stem (the name up to the first dot). Archives can
+* wait for Wi-Fi for a long time while their previews are uploaded right away, so if deleting
+* uploaded recordings is not enough, finished recordings that have not been uploaded but whose
+* companion has are deleted next, in LRU order: the server already has the preview. An uploaded
+* companion of a recording still kept is not evicted before it, it is what allows that. Other
+* recordings that have not been uploaded are never evicted; if they alone exceed the quota,
+* createRecording fails before the capture loop opens any file.
+*
+* There is one store per process for the folder (TestAudioCaptureWithThreshold.getRecordingStore);
+* the methods that touch the index are synchronized. The index is loaded once, when the store is
+* created, so recovery runs once per process: recordings whose encoders are still draining after
+* the capture loop ended stay RECORDING in memory and are never mistaken for interrupted ones.
+* The quota can be changed while the store is in use. An index line that cannot be parsed is
+* logged and dropped, it does not keep the other recordings from loading.
+*
+* Recordings that were still in the RECORDING state when the index was loaded were interrupted
+* by a crash, they are marked INTERRUPTED and their size is taken from the file (streaming .aac
+* files are trimmed back to the last complete ADTS frame first). Entries whose file no longer
+* exists, e.g. a recording that crashed before its encoder opened the file, are dropped from the
+* index so they are never offered for upload. A recording's waveform sidecar
+* (PeakPyramid) is counted in its size and deleted together with it. The CRC-32C computed while
+* the recording was written is kept with it, so the upload can be verified without reading the
+* file twice; recovered recordings have no checksum.
+*
+* Index file format, one recording per line in LRU order:
+*   name \t state \t size \t uploaded \t lastAccess \t crc32c
+* crc32c is eight hex digits or "-"; index files written before it was added end after lastAccess.
+*
+* Required Files:
+* ---------------
+*   - AdtsAudioSink.java, PeakPyramid.java, Crc32c.java
+*
+*/
+
+package com.example.testaudiocapturewiththreshold;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Class body
+public class RecordingStore {
+    private static final String TAG = RecordingStore.class.getSimpleName();
+
+    private static final String INDEX_FILE_NAME = "recordings.idx";
+    private static final String INDEX_TEMP_FILE_NAME = "recordings.idx.tmp";
+    private static final String CHARSET = "UTF-8";
+    private static final String NO_CHECKSUM = "-";
+
+    public enum State {
+        RECORDING, COMPLETE, INTERRUPTED
+    }
+
+    // One entry of the index
+    public static class Recording {
+        final String name;
+        State state;
+        long size;
+        boolean uploaded;
+        long lastAccess;
+        long checksum;
+
+        Recording(String name, State state, long size, boolean uploaded, long lastAccess, long checksum) {
+            this.name = name;
+            this.state = state;
+            this.size = size;
+            this.uploaded = uploaded;
+            this.lastAccess = lastAccess;
+            this.checksum = checksum;
+        }
+
+        public String getName() { return name; }
+        public State getState() { return state; }
+        public long getSize() { return size; }
+        public boolean isUploaded() { return uploaded; }
+        public long getLastAccess() { return lastAccess; }
+        public long getChecksum() { return checksum; }
+    }
+
+    private final File mDirectory;
+    private long mQuotaBytes;
+    private final LinkedHashMap<String, Recording> mIndex =
+            new LinkedHashMap<String, Recording>(16, 0.75f, true); // access order = LRU order
+    private long mUsedBytes = 0;
+
+    //-------------< Constructor >--------------------------------------------------------------
+    public RecordingStore(File directory, long quotaBytes) throws IOException {
+        this.mDirectory = directory;
+        this.mQuotaBytes = quotaBytes;
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("cannot create " + directory);
+        }
+        loadIndex();
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    public synchronized long getQuotaBytes() {
+        return mQuotaBytes;
+    }
+
+    // Takes effect with the next createRecording, nothing is evicted right away
+    public synchronized void setQuotaBytes(long quotaBytes) {
+        mQuotaBytes = quotaBytes;
+    }
+
+    public synchronized long getUsedBytes() {
+        return mUsedBytes;
+    }
+
+    //-------------< Register a new recording, evicting uploaded ones to make room >------------
+    public synchronized File createRecording(String extension, long reserveBytes) throws IOException {
+        evict(reserveBytes);
+        long stamp = new Date().getTime();
+        while (stems().containsKey(Long.toString(stamp))) {  // two recordings in the same millisecond
+            stamp++;
+        }
+        return register(stamp + "." + extension, reserveBytes);  // generate a file name
+    }
+
+    //-------------< Register a companion of a recording, named after it >----------------------
+    public synchronized File createCompanion(File recording, String extension, long reserveBytes) throws IOException {
+        String name = stemOf(recording.getName()) + "." + extension;
+        if (mIndex.containsKey(name)) {
+            throw new IOException(recording.getName() + " already has a companion " + name);
+        }
+        evict(reserveBytes);
+        return register(name, reserveBytes);
+    }
+
+    private File register(String name, long reserveBytes) throws IOException {
+        File file = new File(mDirectory, name);
+        if (file.exists()) {
+            file.delete();
+        }
+        Recording recording = new Recording(name, State.RECORDING, reserveBytes, false, System.currentTimeMillis(),
+                Crc32c.UNKNOWN);
+        put(recording);
+        saveIndex();
+        return file;
+    }
+
+    //-------------< The recording has been closed, record its final size >---------------------
+    public synchronized void markComplete(File file) throws IOException {
+        markComplete(file, Crc32c.UNKNOWN);
+    }
+
+    // checksum is the CRC-32C computed while writing the file, or Crc32c.UNKNOWN
+    public synchronized void markComplete(File file, long checksum) throws IOException {
+        Recording recording = mIndex.get(file.getName());
+        if (recording == null) {
+            Log.w(TAG, "markComplete for unknown recording " + file.getName());
+            return;
+        }
+        setSize(recording, file.length() + PeakPyramid.sidecarFor(file).length());
+        recording.state = State.COMPLETE;
+        recording.checksum = checksum;
+        recording.lastAccess = System.currentTimeMillis();
+        saveIndex();
+    }
+
+    //-------------< The recording reached the server and may be evicted >----------------------
+    public synchronized void markUploaded(File file) throws IOException {
+        Recording recording = mIndex.get(file.getName());
+        if (recording == null) {
+            Log.w(TAG, "markUploaded for unknown recording " + file.getName());
+            return;
+        }
+        recording.uploaded = true;
+        recording.lastAccess = System.currentTimeMillis();
+        saveIndex();
+    }
+
+    //-------------< Forget a recording that never produced a file >---------------------------
+    public synchronized void discard(File file) throws IOException {
+        Recording recording = mIndex.remove(file.getName());
+        if (recording == null) {
+            return;
+        }
+        mUsedBytes -= recording.size;
+        if (file.exists()) {
+            file.delete();
+        }
+        deleteSidecar(file);
+        saveIndex();
+    }
+
+    // Look up a recording by file name, counts as an access for LRU purposes
+    public synchronized Recording get(String name) {
+        Recording recording = mIndex.get(name);
+        if (recording != null) {
+            recording.lastAccess = System.currentTimeMillis();
+        }
+        return recording;
+    }
+
+    public File getFile(Recording recording) {
+        return new File(mDirectory, recording.name);
+    }
+
+    // Finished recordings that still have to be uploaded, least recently used first
+    public synchronized List<Recording> pendingUploads() {
+        List<Recording> pending = new ArrayList<Recording>();
+        for (Recording recording : mIndex.values()) {
+            if (!recording.uploaded && recording.state != State.RECORDING) {
+                pending.add(recording);
+            }
+        }
+        return pending;
+    }
+
+    //-------------< Delete recordings in LRU order until reserveBytes fit >-------------------
+    // Uploaded recordings go first, then recordings whose companion was uploaded
+    private void evict(long reserveBytes) throws IOException {
+        if (mUsedBytes + reserveBytes <= mQuotaBytes) {
+            return;
+        }
+        Map<String, Recording> stems = stems();
+        boolean changed = false;
+        for (int pass = 0; pass < 2 && mUsedBytes + reserveBytes > mQuotaBytes; pass++) {
+            Iterator<Map.Entry<String, Recording>> it = mIndex.entrySet().iterator();
+            while (it.hasNext() && mUsedBytes + reserveBytes > mQuotaBytes) {
+                Recording recording = it.next().getValue();
+                if (recording.state == State.RECORDING) {
+                    continue;
+                }
+                Recording kept = stems.get(stemOf(recording.name));  // not uploaded, shares the stem
+                boolean evictable = pass == 0
+                        ? recording.uploaded && kept == null
+                        : !recording.uploaded && kept == recording && hasUploadedCompanion(recording);
+                if (!evictable) {
+                    continue;
+                }
+                File file = new File(mDirectory, recording.name);
+                if (file.exists() && !file.delete()) {
+                    Log.w(TAG, "could not evict " + recording.name);
+                    continue;
+                }
+                deleteSidecar(file);
+                Log.i(TAG, "evicted " + recording.name + " (" + recording.size + " bytes)"
+                        + (recording.uploaded ? "" : ", not uploaded but its companion was"));
+                mUsedBytes -= recording.size;
+                it.remove();
+                stems.remove(stemOf(recording.name));
+                changed = true;
+            }
+        }
+        if (changed) {
+            saveIndex();
+        }
+        if (mUsedBytes + reserveBytes > mQuotaBytes) {
+            throw new IOException("recording store full: " + mUsedBytes + " of " + mQuotaBytes
+                    + " bytes used by recordings that have not been uploaded");
+        }
+    }
+
+    // For every stem, the recording that has not been uploaded yet, or null if all of them were
+    private Map<String, Recording> stems() {
+        Map<String, Recording> stems = new HashMap<String, Recording>();
+        for (Recording recording : mIndex.values()) {
+            String stem = stemOf(recording.name);
+            if (!recording.uploaded || !stems.containsKey(stem)) {
+                stems.put(stem, recording.uploaded ? null : recording);
+            }
+        }
+        return stems;
+    }
+
+    private boolean hasUploadedCompanion(Recording recording) {
+        String stem = stemOf(recording.name);
+        for (Recording other : mIndex.values()) {
+            if (other != recording && other.uploaded && stemOf(other.name).equals(stem)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static String stemOf(String name) {
+        int dot = name.indexOf('.');
+        return dot < 0 ? name : name.substring(0, dot);
+    }
+
+    private static void deleteSidecar(File recording) {
+        File sidecar = PeakPyramid.sidecarFor(recording);
+        PeakPyramid.discardTemporaryFiles(sidecar);
+        if (sidecar.exists()) {
+            sidecar.delete();
+        }
+    }
+
+    private void put(Recording recording) {
+        Recording previous = mIndex.put(recording.name, recording);
+        if (previous != null) {
+            mUsedBytes -= previous.size;
+        }
+        mUsedBytes += recording.size;
+    }
+
+    private void setSize(Recording recording, long size) {
+        mUsedBytes += size - recording.size;
+        recording.size = size;
+    }
+
+    //-------------< Read the index file, recovering recordings interrupted by a crash >--------
+    private void loadIndex() throws IOException {
+        File indexFile = new File(mDirectory, INDEX_FILE_NAME);
+        if (!indexFile.exists()) {
+            return;
+        }
+        boolean changed = false;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), CHARSET));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length < 5) {
+                    Log.w(TAG, "skipping malformed index line: " + line);
+                    changed = true;
+                    continue;
+                }
+                long checksum = fields.length > 5 && !NO_CHECKSUM.equals(fields[5])
+                        ? Crc32c.parseHex(fields[5]) : Crc32c.UNKNOWN;
+                Recording recording;
+                try {
+                    recording = new Recording(fields[0], State.valueOf(fields[1]), Long.parseLong(fields[2]),
+                            Boolean.parseBoolean(fields[3]), Long.parseLong(fields[4]), checksum);
+                } catch (IllegalArgumentException e) {  // unknown state or a number that does not parse
+                    Log.w(TAG, "skipping malformed index line: " + line + " (" + e.getMessage() + ")");
+                    changed = true;
+                    continue;
+                }
+                File file = new File(mDirectory, recording.name);
+                if (!file.exists()) {
+                    Log.w(TAG, "dropping " + recording.name + " from the index, its file is missing");
+                    deleteSidecar(file);
+                    changed = true;
+                    continue;
+                }
+                if (recording.state == State.RECORDING) {
+                    recover(recording);
+                    changed = true;
+                }
+                put(recording);
+            }
+        } finally {
+            reader.close();
+        }
+        if (changed) {  // entries were dropped or recovered
+            saveIndex();
+        }
+        Log.i(TAG, "loaded " + mIndex.size() + " recordings, " + mUsedBytes + " bytes");
+    }
+
+    private void recover(Recording recording) throws IOException {
+        File file = new File(mDirectory, recording.name);
+        if (file.getName().endsWith("." + TestAudioCaptureWithThreshold.OUTPUT_FORMAT_ADTS)) {
+            recording.size = AdtsAudioSink.recoverLength(file);
+        } else {
+            recording.size = file.length();
+        }
+        PeakPyramid.discardTemporaryFiles(PeakPyramid.sidecarFor(file)); // the pyramid was never assembled
+        recording.state = State.INTERRUPTED;
+        Log.w(TAG, "recovered interrupted recording " + recording.name + " (" + recording.size + " bytes)");
+    }
+
+    //-------------< Write the index to a temp file and rename it over the old one >------------
+    private void saveIndex() throws IOException {
+        File tempFile = new File(mDirectory, INDEX_TEMP_FILE_NAME);
+        FileOutputStream out = new FileOutputStream(tempFile);
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out, CHARSET));
+        try {
+            for (Recording recording : mIndex.values()) {
+                writer.write(recording.name + "\t" + recording.state + "\t" + recording.size + "\t"
+                        + recording.uploaded + "\t" + recording.lastAccess + "\t"
+                        + (recording.checksum == Crc32c.UNKNOWN ? NO_CHECKSUM : Crc32c.toHex(recording.checksum)));
+                writer.newLine();
+            }
+            writer.flush();
+            out.getFD().sync();
+        } finally {
+            writer.close();
+        }
+        if (!tempFile.renameTo(new File(mDirectory, INDEX_FILE_NAME))) {
+            throw new IOException("cannot replace " + INDEX_FILE_NAME);
+        }
+    }
+}
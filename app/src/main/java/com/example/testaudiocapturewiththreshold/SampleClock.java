@@ -0,0 +1,59 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////
+// SampleClock.java - MediaClock derived from the cumulative sample count                         //
+// Ver 1.0                                                                                        //
+// Language:    Java                                                                              //
+// platform:    Android                                                                           //
+// Application: Audio Capture Application                                                         //
+////////////////////////////////////////////////////////////////////////////////////////////////////
+/*
+* Class Operations:
+* -------------------
+* Counts samples and converts the count to nanoseconds at the configured sample rate. The result
+* depends only on how much audio went through, not on when it arrived, so replayed input produces
+* identical timestamps at any speed and scheduling jitter never reaches the AAC timeline.
+*
+* Required Files:
+* ---------------
+*   - MediaClock.java
+*
+*/
+
+package com.example.testaudiocapturewiththreshold;
+
+// Class body
+public class SampleClock implements MediaClock {
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private final int mSampleRate;
+    private long mSamples = 0;
+
+    //-------------< Constructor >--------------------------------------------------------------
+    public SampleClock(int sampleRate) {
+        if (sampleRate <= 0) {
+            throw new IllegalArgumentException("sample rate must be positive");
+        }
+        this.mSampleRate = sampleRate;
+    }
+
+    @Override
+    public void advance(int samples) {
+        if (samples > 0) {
+            mSamples += samples;
+        }
+    }
+
+    @Override
+    public long nowNs() {
+        // split into whole seconds and remainder so the multiplication cannot overflow
+        return (mSamples / mSampleRate) * NANOS_PER_SECOND
+                + (mSamples % mSampleRate) * NANOS_PER_SECOND / mSampleRate;
+    }
+
+    public long getSamples() {
+        return mSamples;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+}
@@ -18,27 +18,45 @@
 * length (taking into account the length of natural pauses). If no voice has been detected for a
 * considerable length of time, then the recording is automatically stopped and saved into a file in
 * local storage. The file formated is defined when we create the MediaMuxer instance, in this case
-* "MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4". If users agree to send the file to FTP server,
-* the application will automatically connect to FTP server and upload the file. The sendtoFTPServer
-* flag, threshold frequency, natural pause length, allowable pause length are all customerized
-* options which users can change in the preference setting.
+* "MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4", or a raw ADTS AAC stream that is written
+* incrementally and survives a crash (AdtsAudioSink). If users agree to send the file to the server,
+* the application will automatically upload the file, together with any earlier recordings whose
+* upload failed, over FTP or chunked HTTP (UploadTransport). The sendtoFTPServer
+* flag, threshold frequency, natural pause length, allowable pause length and output format are all
+* customerized options which users can change in the preference setting. Recordings are kept in a
+* RecordingStore which tracks their upload status and evicts uploaded ones to stay within the
+* storage quota. Optionally a small speech preview is encoded alongside the archive from the same
+* frames (FanOutFrameConsumer); previews are uploaded first, archives wait for Wi-Fi, and when the
+* quota runs out an archive whose preview reached the server is evicted before recording stops. While
+* recording, a level meter shows the input level against the threshold and what the detector does
+* with it; the UI polls the latest value (LevelMeter) at display rate. If the encoder cannot keep
+* up, the OverloadController lowers the quality at the next pause, which starts a new segment file.
+* ADTS recordings carry a CRC-32C taken while writing (Crc32c), the HTTP upload is verified with it;
+* with HTTP the output format therefore defaults to ADTS, and MPEG-4 uploads log that they are not
+* verified. After each recording the status line shows how many uploads actually succeeded.
 *
 * Required Files:
 * ---------------
-*   - AudioEncoder.java, AudioCapturePreferenceActivity.java,
+*   - AudioEncoder.java, AudioCapturePreferenceActivity.java, EncodedAudioSink.java,
+*     MuxerAudioSink.java, AdtsAudioSink.java, RecordingStore.java, UploadTransport.java,
+*     FtpUploadTransport.java, HttpUploadTransport.java, CascadeDetector.java, CaptureSession.java,
+*     MediaClock.java, SampleClock.java, AudioFrameConsumer.java, FanOutFrameConsumer.java,
+*     PeakPyramid.java, LevelMeter.java, OverloadController.java, QualityProfile.java, Crc32c.java,
 *     activity_test_audio_capture_with_threshold.xml
 *
 */
 
 package com.example.testaudiocapturewiththreshold;
 
-import org.apache.commons.net.ftp.FTPClient;
+import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.media.AudioFormat;
 import android.media.AudioRecord;
 import android.media.MediaMuxer;
 import android.media.MediaRecorder;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.os.AsyncTask;
 import android.os.Environment;
 import android.os.  Handler;
@@ -50,14 +68,22 @@ import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.Button;
+import android.widget.ProgressBar;
 import android.widget.TextView;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.Calendar;
-import java.util.Date;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 // Class body
 public class TestAudioCaptureWithThreshold extends ActionBarActivity{
@@ -65,7 +91,13 @@ public class TestAudioCaptureWithThreshold extends ActionBarActivity{
 
     // File storage related configuration
     private static final String AUDIO_RECORDER_FOLDER = "AudioRecorder";
-    private static String AUDIO_RECORDER_TEMP_FILE;
+    public static final String OUTPUT_FORMAT_MPEG_4 = "m4a";
+    public static final String OUTPUT_FORMAT_ADTS = "aac";
+    private static final long PREALLOCATION_BYTES = 4 * 1024 * 1024; // ~4 min @ 128 kbps
+    public static final String PREVIEW_EXTENSION = "preview." + OUTPUT_FORMAT_ADTS;
+    public static final int PREVIEW_BIT_RATE = 24000;  // speech preview, uploaded right away
+    private static final long ENCODER_STOP_TIMEOUT_MS = 10000;
+    private static final long ENCODER_DRAIN_TIMEOUT_MS = 5 * 60 * 1000;
     private static String STORED_FILE_NAME = " ";
 
     // Used for AudioRecord configuration
@@ -79,6 +111,20 @@ public class TestAudioCaptureWithThreshold extends ActionBarActivity{
     private Button mStartStopButton;
     private TextView mRecordingTextView;
 
+    // Live input level, written by the capture thread and polled by the UI
+    private static final long LEVEL_METER_INTERVAL_MS = 33; // ~30 fps
+    private static final double LEVEL_METER_FLOOR_DB = -90;
+    private static final int LEVEL_METER_RANGE_DB = 60;     // the bar shows -60..0 dBFS in 0.1 dB steps, max in the layout
+    private final LevelMeter mLevelMeter = new LevelMeter();
+    private ProgressBar mLevelMeterBar;
+    private TextView mLevelTextView;
+    private int mLevelMeterSequence = -1;
+    private final Runnable mLevelMeterUpdater = new Runnable() {
+        public void run() {
+            updateLevelMeter();
+        }
+    };
+
     // Used to retain UI after rotation
     private static final String ButtonText = "ButtonText";
     private static final String RecordingTextViewText = "RecordingTextView";
@@ -87,10 +133,17 @@ public class TestAudioCaptureWithThreshold extends ActionBarActivity{
     public static final String FTP_HOST = "192.168.0.11";
     private static final String FTP_USER = "gina";
     private static final String FTP_PASS = "1111";
-
-    // Used for encoding and file streaming
-    AudioEncoder mEncoder;
-    MediaMuxer mMuxer;
+    private static final String FTP_DIRECTORY = "/upload/";
+    public static final String UPLOAD_TRANSPORT_FTP = "ftp";
+    public static final String UPLOAD_TRANSPORT_HTTP = "http";
+    private static final long UPLOAD_TIMEOUT_MS = 10 * 60 * 1000;
+
+    // The recordings folder, shared by every recording of this process
+    private static RecordingStore sRecordingStore;
+    // Encoders still writing when their recording ended are waited for here, not in RecordAudio
+    private static final ExecutorService DRAIN_EXECUTOR = Executors.newSingleThreadExecutor();
+    // Uploads and the wait for them, one batch at a time so a recording is never sent twice at once
+    private static final ExecutorService UPLOAD_EXECUTOR = Executors.newSingleThreadExecutor();
 
     // Flag for continuation of recording
     boolean started = false;
@@ -103,6 +156,13 @@ public class TestAudioCaptureWithThreshold extends ActionBarActivity{
     public static short threshold = 500;
     public static long naturalPauseLength = 5000000000L;
     public static long allowablePauseLength = 20000000000L;
+    public static String outputFormat = OUTPUT_FORMAT_MPEG_4;
+    public static long storageQuota = 1024L * 1024 * 1024;
+    public static boolean preallocateRecordings = false;
+    public static String uploadTransport = UPLOAD_TRANSPORT_FTP;
+    public static String httpUploadUrl = "http://" + FTP_HOST + ":8080/upload/";
+    public static boolean recordPreview = false;
+    public static boolean archiveOverWifiOnly = true;
 
 
     // Uer Preference Settings Change Event
@@ -129,6 +189,8 @@ public class TestAudioCaptureWithThreshold extends ActionBarActivity{
 
         mRecordingTextView = (TextView)findViewById(R.id.recording_text_view);
         mStartStopButton = (Button)findViewById(R.id.start_stop_button);
+        mLevelMeterBar = (ProgressBar)findViewById(R.id.level_meter);
+        mLevelTextView = (TextView)findViewById(R.id.level_text_view);
 
         // Retain UI
         if(savedInstanceState !=null){
@@ -171,7 +233,18 @@ public class TestAudioCaptureWithThreshold extends ActionBarActivity{
     protected void onResume() {
         Log.w(TAG, "onResume");
         super.onResume();
+        if (started) {
+            mLevelMeterBar.removeCallbacks(mLevelMeterUpdater);
+            mLevelMeterBar.post(mLevelMeterUpdater);
+        }
+    }
 
+    @Override
+    protected void onPause() {
+        Log.w(TAG, "onPause");
+        // stop polling, the capture thread only measures levels somebody reads
+        mLevelMeterBar.removeCallbacks(mLevelMeterUpdater);
+        super.onPause();
     }
 
     @Override
@@ -194,11 +267,27 @@ public class TestAudioCaptureWithThreshold extends ActionBarActivity{
             threshold = Short.parseShort(SP.getString("thresholdFrequency", "500"));
             naturalPauseLength =  Integer.parseInt(SP.getString("naturalPauseLength", "5"))*1000000000L;
             allowablePauseLength = Integer.parseInt(SP.getString("allowablePauseLength", "120"))*1000000000L;
+            uploadTransport = SP.getString("uploadTransport", UPLOAD_TRANSPORT_FTP);
+            // only ADTS recordings carry the checksum the HTTP upload is verified with
+            outputFormat = SP.getString("outputFormat", UPLOAD_TRANSPORT_HTTP.equals(uploadTransport)
+                    ? OUTPUT_FORMAT_ADTS : OUTPUT_FORMAT_MPEG_4);
+            if (UPLOAD_TRANSPORT_HTTP.equals(uploadTransport) && !OUTPUT_FORMAT_ADTS.equals(outputFormat)) {
+                Log.w(TAG, "output format " + outputFormat + " has no checksum, HTTP uploads are not verified");
+            }
+            storageQuota = Integer.parseInt(SP.getString("storageQuota", "1024"))*1024L*1024L;
+            preallocateRecordings = SP.getBoolean("preallocateRecordings", false);
+            httpUploadUrl = SP.getString("httpUploadUrl", httpUploadUrl);
+            recordPreview = SP.getBoolean("recordPreview", false);
+            archiveOverWifiOnly = SP.getBoolean("archiveOverWifiOnly", true);
 
             try {
 
-                File file = getTempFile();
+                // preallocation only applies to the streaming sink, MediaMuxer opens the file itself
+                final long preallocateBytes = (preallocateRecordings && OUTPUT_FORMAT_ADTS.equals(outputFormat)) ? PREALLOCATION_BYTES : 0;
+                final RecordingStore store = getRecordingStore(getRecorderFolder(), storageQuota);
+                final File file = store.createRecording(outputFormat, preallocateBytes);
                 STORED_FILE_NAME = file.getAbsolutePath();
+                final File previewFile = recordPreview ? store.createCompanion(file, PREVIEW_EXTENSION, 0) : null;
                 int minBufferSize = AudioRecord.getMinBufferSize(frequency,
                         channelConfiguration, audioEncoding);
 
@@ -207,76 +296,76 @@ public class TestAudioCaptureWithThreshold extends ActionBarActivity{
                 if (bufferSize < minBufferSize)
                     bufferSize = ((minBufferSize / samples_per_frame) + 1) * samples_per_frame * 2;
 
-                short[] buffer = new short[bufferSize/2];
+                // one frame of samples_per_frame/2 samples, read straight into memory the native kernels can use
+                ByteBuffer buffer = ByteBuffer.allocateDirect(samples_per_frame).order(ByteOrder.nativeOrder());
 
                 AudioRecord audioRecord = new AudioRecord( MediaRecorder.AudioSource.MIC, frequency,
                         channelConfiguration, audioEncoding, bufferSize);
 
+                if (!PcmKernels.isNativeAvailable()) {
+                    Log.w(TAG, "libndk1 not loaded, PCM kernels run in Java: " + PcmKernels.getNativeLoadError());
+                }
+
                 // start receiving sound
                 audioRecord.startRecording();
 
-                boolean isCountingTime = false; // used to count how much continual silence time has passed
-                long starttime = 0, stoptime = 0, elapsedtime = 0, totalelapsedtime = 0;
+                // steps the encoding profile down when the encoder falls behind, and back up
+                final OverloadController overload = new OverloadController(frequency);
+                final List<File> segmentFiles = new ArrayList<File>(); // every file the encoders write to
+                final Map<File, AdtsAudioSink> adtsSinks = new HashMap<File, AdtsAudioSink>(); // their checksums
+                final Map<File, AudioFrameConsumer> segmentEncoders = new HashMap<File, AudioFrameConsumer>(); // writing each file
+
+                // timestamps and pause lengths are derived from the number of samples read
+                CaptureSession session = new CaptureSession(new CascadeDetector(threshold),
+                        new SampleClock(frequency), new SampleClock(frequency),
+                        naturalPauseLength, allowablePauseLength, new CaptureSession.EncoderFactory() {
+                    public AudioFrameConsumer createEncoder(CaptureSession session) throws IOException {
+                        // the first segment uses the files created up front, a profile change starts new ones
+                        boolean firstSegment = segmentFiles.isEmpty();
+                        File archiveFile = firstSegment ? file : store.createRecording(outputFormat, preallocateBytes);
+                        segmentFiles.add(archiveFile);
+                        File previewSegment = null;
+                        if (previewFile != null) {
+                            previewSegment = firstSegment ? previewFile : store.createCompanion(archiveFile, PREVIEW_EXTENSION, 0);
+                            segmentFiles.add(previewSegment);
+                        }
+                        QualityProfile profile = overload.getProfile();
+                        int sampleRate = frequency / profile.getDecimation();
+
+                        EncodedAudioSink sink;
+                        if (OUTPUT_FORMAT_ADTS.equals(outputFormat)) {
+                            sink = new AdtsAudioSink(archiveFile, AdtsAudioSink.DEFAULT_SYNC_INTERVAL_US, preallocateBytes);
+                            adtsSinks.put(archiveFile, (AdtsAudioSink) sink);
+                        } else {  // MediaMuxer rewrites the file when it stops, no checksum while writing
+                            MediaMuxer muxer = new MediaMuxer(archiveFile.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+                            sink = new MuxerAudioSink(muxer);
+                        }
+                        AudioEncoder archive = new AudioEncoder(getApplicationContext(), sink, sampleRate, profile.getArchiveBitRate());
+                        segmentEncoders.put(archiveFile, archive);
+                        // waveform overview for the review tool, one per archive segment, of the frames before decimation
+                        session.setPeakPyramid(new PeakPyramid(PeakPyramid.sidecarFor(archiveFile), frequency));
+                        if (previewSegment == null) {
+                            return archive;
+                        }
+                        // both encoders read the same frames, each from its own queue
+                        AdtsAudioSink previewSink = new AdtsAudioSink(previewSegment);
+                        adtsSinks.put(previewSegment, previewSink);
+                        AudioEncoder preview = new AudioEncoder(getApplicationContext(), previewSink,
+                                sampleRate, PREVIEW_BIT_RATE);
+                        segmentEncoders.put(previewSegment, preview);
+                        return new FanOutFrameConsumer(preview, archive);
+                    }
+                });
+                session.setOverloadController(overload);
+                // the UI samples the meter itself, publishProgress would post a message per frame
+                mLevelMeter.reset();
+                session.setLevelMeter(mLevelMeter);
 
                 while (started) {
-                    byte[] this_buffer;
-                    this_buffer = new byte[samples_per_frame];
-                    int bufferReadResult = audioRecord.read(buffer, 0,samples_per_frame/2);
+                    int bufferReadResult = audioRecord.read(buffer, samples_per_frame);
 
                     if(AudioRecord.ERROR_INVALID_OPERATION != bufferReadResult) {
-                        //check signal
-                        //put a threshold
-                        int foundPeak = searchThreshold(buffer, threshold);
-                        if (foundPeak > -1) {
-                            //Log.w(TAG, "AudioRecord - Inside foundPeak>-1");
-                            if (isCountingTime == true) {
-                                if (elapsedtime > naturalPauseLength)
-                                    totalelapsedtime += elapsedtime - naturalPauseLength;
-                                elapsedtime = 0;
-                            }
-                            isCountingTime = false;
-                            //if the output file stream doesn't exist, create it, else ignore this step
-                            if (mEncoder == null) {
-                                //Log.w(TAG, "creating AudioEncoder instance");
-                                try {
-                                    mMuxer = new MediaMuxer(file.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-                                } catch (IOException ioe) {
-                                    throw new RuntimeException("MediaMuxer creation failed", ioe);
-                                }
-                                mEncoder = new AudioEncoder(getApplicationContext(), mMuxer);
-                            }
-
-                            //--------< the following time stamp code used for debugging >-----------------------------
-                            Calendar c = Calendar.getInstance();
-                            Log.w(TAG, "recorded sound at " + c.get(Calendar.HOUR_OF_DAY) + ":" + c.get(Calendar.MINUTE) + ":" + c.get(Calendar.SECOND));
-
-                            //found signal
-                            //record signal
-                            if (mEncoder != null) {
-                                this_buffer = ShortToByte(buffer, bufferReadResult);
-                                mEncoder.offerAudioEncoder(this_buffer, System.nanoTime() - totalelapsedtime);
-                            }
-                        } else {
-                            //count the time
-                            //don't save signal
-                            if (isCountingTime == false) {
-                                starttime = System.nanoTime();
-                            }
-                            isCountingTime = true;
-                            stoptime = System.nanoTime();
-                            elapsedtime = stoptime - starttime;
-
-                            Log.w(TAG, "no voice detected for " + TimeUnit.SECONDS.convert(elapsedtime, TimeUnit.NANOSECONDS) + " seconds");
-
-                            //if the file output stream has been created and if the silent time is no more than 5 seconds, still record the blank
-                            if (mEncoder != null && elapsedtime <= naturalPauseLength) {
-                                this_buffer = ShortToByte(buffer, bufferReadResult);
-                                mEncoder.offerAudioEncoder(this_buffer, System.nanoTime() - totalelapsedtime);
-                                continue;
-                            }
-                            //if elapsed time is longer than 20 seconds
-                            if (elapsedtime > allowablePauseLength) break;
-                        }
+                        if (!session.processFrame(buffer, bufferReadResult / 2)) break;
                     }
                 }
                 if (audioRecord != null) {
@@ -300,20 +389,59 @@ public class TestAudioCaptureWithThreshold extends ActionBarActivity{
                     }
                 });
 
-                // stop AudioEncoder instance
-                if(mEncoder!=null){
-                    mEncoder.stop();
-                    mEncoder = null;
+                // stop the AudioEncoder instances and wait until their files are closed
+                if (!session.finish(ENCODER_STOP_TIMEOUT_MS)) {
+                    Log.w(TAG, "not every encoder stopped within " + ENCODER_STOP_TIMEOUT_MS + " ms");
+                }
+                if (segmentFiles.isEmpty()) {  // no voice, the files created up front stay empty
+                    segmentFiles.add(file);
+                    if (previewFile != null) {
+                        segmentFiles.add(previewFile);
+                    }
+                }
+                final List<File> draining = new ArrayList<File>();
+                for (File segment : segmentFiles) {
+                    AudioFrameConsumer encoder = segmentEncoders.get(segment);
+                    if (encoder != null && !encoder.waitForStop(0)) {
+                        // its encoder is still writing, the entry stays RECORDING (not uploaded, evicted
+                        // or recovered) until DRAIN_EXECUTOR has seen the encoder stop
+                        draining.add(segment);
+                    } else {
+                        completeSegment(store, segment, adtsSinks.get(segment));
+                    }
+                }
+                if (!draining.isEmpty()) {
+                    DRAIN_EXECUTOR.execute(new Runnable() {
+                        public void run() {
+                            drainSegments(store, draining, segmentEncoders, adtsSinks);
+                        }
+                    });
                 }
 
-                // if sendtoFTPServer flag is true, upload file to FTP server
+                // if sendtoFTPServer flag is true, upload this and any earlier pending recordings; on
+                // UPLOAD_EXECUTOR, AsyncTask's serial executor would hold the next recording back
                 if(sendtoFTPServer) {
-                    uploadFile(file);
-                    mRecordingTextView.post(new Runnable(){
-                        public void run(){
-                            if(mStartStopButton.getText()=="Stop Recording"){
-                                mRecordingTextView.append(" and has been sent to the FTP server.");
+                    UPLOAD_EXECUTOR.execute(new Runnable() {
+                        public void run() {
+                            String outcome;
+                            try {
+                                outcome = uploadRecordings(store).describe();
+                            } catch (IOException e) {
+                                e.printStackTrace();
+                                outcome = " Upload failed: " + e.getMessage();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                return;
                             }
+                            Log.i(TAG, "upload:" + outcome);
+                            final String message = outcome;
+                            mRecordingTextView.post(new Runnable(){
+                                public void run(){
+                                    if(!started){  // a new recording shows its own status
+                                        mRecordingTextView.append(message);
+                                    }
+                                }
+                            });
                         }
                     });
                 }
@@ -325,77 +453,157 @@ public class TestAudioCaptureWithThreshold extends ActionBarActivity{
 
         } //end of doInBackground
 
-        byte [] ShortToByte(short [] input, int elements) {
-            int short_index, byte_index;
-            int iterations = elements; //input.length;
-            byte [] buffer = new byte[iterations * 2];
-            short_index = byte_index = 0;
-            for(/*NOP*/; short_index != iterations; /*NOP*/)
-            {
-                buffer[byte_index]     = (byte) (input[short_index] & 0x00FF);
-                buffer[byte_index + 1] = (byte) ((input[short_index] & 0xFF00) >> 8);
+        // Folder holding the recordings, files inside are created by the RecordingStore
+        private File getRecorderFolder() {
+            String filepath = Environment.getExternalStorageDirectory().getPath();
+            return new File(filepath, AUDIO_RECORDER_FOLDER);
+        }
 
-                ++short_index; byte_index += 2;
+        // upload every finished recording that has not reached the server yet, and wait for them;
+        // previews go first, archives wait for Wi-Fi unless the user allows mobile data
+        public UploadResult uploadRecordings(final RecordingStore store) throws IOException, InterruptedException {
+            final UploadResult result = new UploadResult();
+            boolean archivesAllowed = !archiveOverWifiOnly || isOnWifi();
+            List<RecordingStore.Recording> pending = new ArrayList<RecordingStore.Recording>();
+            List<RecordingStore.Recording> archives = new ArrayList<RecordingStore.Recording>();
+            for (RecordingStore.Recording recording : store.pendingUploads()) {
+                if (isPreview(recording)) {
+                    pending.add(recording);
+                } else if (archivesAllowed) {
+                    archives.add(recording);
+                } else {
+                    result.waitingForWifi++;
+                }
             }
-            return buffer;
+            pending.addAll(archives);
+            if (!archivesAllowed) {
+                Log.i(TAG, "not on Wi-Fi, archive recordings stay queued");
+            }
+            if (pending.isEmpty()) {
+                return result;
+            }
+            result.attempted = pending.size();
+            UploadTransport transport = createUploadTransport();
+            final CountDownLatch done = new CountDownLatch(pending.size());
+            try {
+                for (RecordingStore.Recording recording : pending) {
+                    transport.upload(store.getFile(recording), recording.getChecksum(), new UploadTransport.Callback() {
+                        public void onUploadFinished(File uploaded, boolean success, IOException error) {
+                            try {
+                                if (success) {
+                                    result.uploaded.incrementAndGet();
+                                    store.markUploaded(uploaded);
+                                }
+                            } catch (IOException e) {
+                                e.printStackTrace();
+                            } finally {
+                                result.finished.incrementAndGet();
+                                done.countDown();
+                            }
+                        }
+                    });
+                }
+                if (!done.await(UPLOAD_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    Log.w(TAG, "uploads did not finish within " + UPLOAD_TIMEOUT_MS + " ms");
+                }
+            } finally {
+                transport.close();
+            }
+            return result;
         }
 
+        private boolean isPreview(RecordingStore.Recording recording) {
+            return recording.getName().endsWith("." + PREVIEW_EXTENSION);
+        }
 
-        // decide if the recorded samples surpasses the threshold
-        int searchThreshold(short[]arr,short thr){
-            int peakIndex;
-            int arrLen=arr.length;
-            for (peakIndex=0;peakIndex<arrLen;peakIndex++){
-                if ((arr[peakIndex]>=thr) || (arr[peakIndex]<=-thr)){
-                    // if it surpasses the threshold, returns the peak Hertz
-                    return peakIndex;
-                }
+        private boolean isOnWifi() {
+            ConnectivityManager connectivity = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+            NetworkInfo network = connectivity == null ? null : connectivity.getActiveNetworkInfo();
+            return network != null && network.isConnected() && network.getType() == ConnectivityManager.TYPE_WIFI;
+        }
+
+        private UploadTransport createUploadTransport() throws IOException {
+            if (UPLOAD_TRANSPORT_HTTP.equals(uploadTransport)) {
+                return new HttpUploadTransport(httpUploadUrl);
             }
-            return -1; //not found
+            return new FtpUploadTransport(FTP_HOST, 21, FTP_USER, FTP_PASS, FTP_DIRECTORY);
         }
+    } //End of RecordAudio (AsyncTask)
 
-        // Generate a file for storing the recorded voice
-        private File getTempFile() {
-            String filepath = Environment.getExternalStorageDirectory().getPath();
-            File file = new File(filepath, AUDIO_RECORDER_FOLDER);
-            if (!file.exists()) {
-                file.mkdirs();
+    //-------------< What one round of uploads achieved, for the status line >----------------
+    static class UploadResult {
+        int attempted = 0;
+        int waitingForWifi = 0;
+        final AtomicInteger finished = new AtomicInteger();  // counted by the transport's callbacks
+        final AtomicInteger uploaded = new AtomicInteger();
+
+        String describe() {
+            StringBuilder text = new StringBuilder();
+            int failed = finished.get() - uploaded.get();
+            int unfinished = attempted - finished.get();
+            if (attempted == 0) {
+                text.append(waitingForWifi == 0 ? " Nothing to upload." : "");
+            } else if (uploaded.get() == attempted) {
+                text.append(" Sent ").append(attempted).append(attempted == 1 ? " recording" : " recordings")
+                        .append(" to the server.");
+            } else {
+                text.append(" Sent ").append(uploaded.get()).append(" of ").append(attempted)
+                        .append(" recordings to the server");
+                if (failed > 0) {
+                    text.append(", ").append(failed).append(" failed");
+                }
+                if (unfinished > 0) {
+                    text.append(", ").append(unfinished).append(" still uploading");
+                }
+                text.append(", the rest is sent with the next upload.");
+            }
+            if (waitingForWifi > 0) {
+                text.append(" ").append(waitingForWifi).append(waitingForWifi == 1 ? " archive waits" : " archives wait")
+                        .append(" for Wi-Fi.");
             }
-            AUDIO_RECORDER_TEMP_FILE = new Date().getTime() + ".m4a";  // generate a file name
-            File tempFile = new File(filepath, AUDIO_RECORDER_TEMP_FILE);
-            if (tempFile.exists())
-                tempFile.delete();
-            file = new File(file.getAbsolutePath(), AUDIO_RECORDER_TEMP_FILE);
-            return file;
+            return text.toString();
         }
+    }
 
-        // upload the file to a FTP server
-        public void uploadFile(File fileName){
-            FTPClient client = new FTPClient();
-            try {
-                //client.setConnectTimeout(1000000);
-                Log.w(TAG, "Connecting to FTP Server");
-                client.connect(FTP_HOST,21);
-                client.login(FTP_USER, FTP_PASS);
-                Log.w(TAG, "Logged on");
-                client.setFileType(FTPClient.BINARY_FILE_TYPE);
-                client.changeWorkingDirectory("/upload/");
-                client.storeFile(fileName.getName(),new FileInputStream(fileName));
-                Log.w(TAG, "File uploaded");
+    //-------------< Record how a segment ended, once its encoder has stopped >----------------
+    private static void completeSegment(RecordingStore store, File segment, AdtsAudioSink sink) throws IOException {
+        if (segment.exists()) {
+            store.markComplete(segment, sink != null ? sink.getChecksum() : Crc32c.UNKNOWN);
+        } else {
+            store.discard(segment);
+        }
+    }
 
+    // Runs on DRAIN_EXECUTOR, the next upload picks the drained segments up
+    private static void drainSegments(RecordingStore store, List<File> segments,
+                                      Map<File, AudioFrameConsumer> encoders, Map<File, AdtsAudioSink> adtsSinks) {
+        for (File segment : segments) {
+            try {
+                if (encoders.get(segment).waitForStop(ENCODER_DRAIN_TIMEOUT_MS)) {
+                    completeSegment(store, segment, adtsSinks.get(segment));
+                    Log.i(TAG, segment.getName() + " completed after its recording ended");
+                } else {
+                    Log.w(TAG, segment.getName() + " still being written after " + ENCODER_DRAIN_TIMEOUT_MS
+                            + " ms, left RECORDING");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
             } catch (IOException e) {
                 e.printStackTrace();
-            } finally{
-                try {
-                    Log.w(TAG, "Trying to disconnect");
-                    client.disconnect();
-                } catch (IOException e2) {
-                    e2.printStackTrace();
-                }
             }
+        }
+    }
 
+    //-------------< The process-wide store, recovery runs when it is first created >-----------
+    static synchronized RecordingStore getRecordingStore(File directory, long quotaBytes) throws IOException {
+        if (sRecordingStore == null) {
+            sRecordingStore = new RecordingStore(directory, quotaBytes);
+        } else {
+            sRecordingStore.setQuotaBytes(quotaBytes);  // the preference may have changed
         }
-    } //End of RecordAudio (AsyncTask)
+        return sRecordingStore;
+    }
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
@@ -427,8 +635,53 @@ public class TestAudioCaptureWithThreshold extends ActionBarActivity{
                 started = true;
                 recordTask = new RecordAudio();
                 recordTask.execute();
+                mLevelMeterBar.removeCallbacks(mLevelMeterUpdater);
+                mLevelMeterBar.post(mLevelMeterUpdater);
             }
         }, 10);
     }
 
+    //-------------< Show the latest level, runs on the UI thread while recording >-------------
+    private void updateLevelMeter() {
+        if (!started) {
+            mLevelMeterBar.setProgress(0);
+            mLevelMeterBar.setSecondaryProgress(0);
+            mLevelTextView.setText("");
+            mLevelMeterSequence = -1;
+            return;
+        }
+        long value = mLevelMeter.read();
+        if (LevelMeter.sequenceOf(value) != mLevelMeterSequence) {  // redraw only when a new frame arrived
+            mLevelMeterSequence = LevelMeter.sequenceOf(value);
+            int peak = LevelMeter.peakOf(value);
+            int rms = LevelMeter.rmsOf(value);
+            mLevelMeterBar.setProgress(meterProgress(rms));
+            mLevelMeterBar.setSecondaryProgress(meterProgress(peak));
+            String state;
+            switch (LevelMeter.stateOf(value)) {
+                case LevelMeter.STATE_VOICE:
+                    state = "voice, recording";
+                    break;
+                case LevelMeter.STATE_PAUSE_RECORDED:
+                    state = "natural pause, recording";
+                    break;
+                case LevelMeter.STATE_SILENCE:
+                    state = "silence, not recorded";
+                    break;
+                default:
+                    state = "waiting for input";
+                    break;
+            }
+            mLevelTextView.setText(String.format("peak %.0f dBFS, RMS %.0f dBFS (threshold %.0f dBFS): %s",
+                    LevelMeter.toDbfs(peak, LEVEL_METER_FLOOR_DB), LevelMeter.toDbfs(rms, LEVEL_METER_FLOOR_DB),
+                    LevelMeter.toDbfs(threshold, LEVEL_METER_FLOOR_DB), state));
+        }
+        mLevelMeterBar.postDelayed(mLevelMeterUpdater, LEVEL_METER_INTERVAL_MS);
+    }
+
+    // Position on the meter bar, which is linear in dB, not in amplitude
+    private static int meterProgress(int level) {
+        return (int) Math.round((LevelMeter.toDbfs(level, -LEVEL_METER_RANGE_DB) + LEVEL_METER_RANGE_DB) * 10);
+    }
+
 }
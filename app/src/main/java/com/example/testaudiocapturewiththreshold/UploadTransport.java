@@ -0,0 +1,44 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////
+// UploadTransport.java - Abstraction over the ways a finished recording reaches the server       //
+// Ver 1.0                                                                                        //
+// Language:    Java                                                                              //
+// platform:    Android                                                                           //
+// Application: Audio Capture Application                                                         //
+////////////////////////////////////////////////////////////////////////////////////////////////////
+/*
+* Interface Operations:
+* -------------------
+* upload() queues a file and returns immediately, the Callback is invoked from the transport's
+* own thread once the server accepted or rejected it. FtpUploadTransport uploads one file at a
+* time with commons-net; HttpUploadTransport multiplexes several chunked HTTP uploads on a single
+* selector thread. close() stops the transport thread, uploads still queued are reported failed.
+* A checksum (CRC-32C computed while the file was written) lets the server verify the upload;
+* HttpUploadTransport sends it and retries uploads the server found corrupt, FTP has no standard
+* way to pass it and ignores it.
+*
+* Required Files:
+* ---------------
+*   - FtpUploadTransport.java, HttpUploadTransport.java
+*
+*/
+
+package com.example.testaudiocapturewiththreshold;
+
+import java.io.File;
+import java.io.IOException;
+
+// Interface body
+public interface UploadTransport {
+
+    interface Callback {
+        // error is null when success is true, and may be null when the server simply refused
+        void onUploadFinished(File file, boolean success, IOException error);
+    }
+
+    void upload(File file, Callback callback);
+
+    // checksum is the file's CRC-32C, or Crc32c.UNKNOWN
+    void upload(File file, long checksum, Callback callback);
+
+    void close();
+}